@@ -1,301 +1,616 @@
 package ast;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import csem.Application;
 import csem.Beta;
 import csem.Delta;
+import csem.FoldedConstant;
+import csem.Let;
+import csem.ProvenOperation;
+import csem.Rec;
+import csem.TailCall;
 
 
 
 
-public class AST{ //AST in left-child, right-sibling representation 
-  private ASTNode root;
+public class AST{ //AST in left-child, right-sibling representation, stored in a NodeTable
+  private NodeTable nodes;
+  private int root;
+  private ASTNode rootNode; //root of the ASTNodes the delta bodies are made of
+  private Map<ASTNode, String[]> freeVars; //for each lambda under rootNode (see FreeVariableAnalyzer)
   private boolean standardized;
-  private Delta currentDelta;
   private Delta rootDelta;
-  private ArrayDeque<PendingDeltaBody> pendingDeltaBodyQueue;
   private int deltaIndex;
+  private boolean parallel;
+  private boolean lazy;
+  private boolean shortCircuit;
+  private int[] firstNewDeltaIndices; //see numberDeltas()
 
 
-  public AST(ASTNode node){
-    this.root = node;
+  public AST(NodeTable nodes, int root){
+    this.nodes = nodes;
+    this.root = root;
   }
 
-
-  public void print(){    //preorder traversal
-    PreorderTraversal(root,"");
+  /**
+   * @param standardized true if the tree in the node table is already standardized (see {@link Standardizer})
+   */
+  public AST(NodeTable nodes, int root, boolean standardized){
+    this(nodes, root);
+    this.standardized = standardized;
   }
 
 
+  public void print(){    //preorder traversal
+    try{
+      write(Channels.newChannel(System.out), TreeWriter.Format.TEXT);
+    }catch(IOException e){ //System.out never reports errors
+    }
+    System.out.flush();
+  }
 
-
-
-  private void PreorderTraversal(ASTNode node, String printPrefix){
-    if(node==null)
-      return;
-
-    printASTNodeDetails(node, printPrefix);
-    PreorderTraversal(node.getChild(),printPrefix+".");
-    PreorderTraversal(node.getSibling(),printPrefix);
+  /**
+   * Writes the tree to a channel in the given format (see {@link TreeWriter}).
+   */
+  public void write(WritableByteChannel channel, TreeWriter.Format format) throws IOException{
+    new TreeWriter(channel, format).write(nodes, root);
   }
 
-  private void printASTNodeDetails(ASTNode node, String printPrefix){
-    if(node.getType() == ASTNodeType.IDENTIFIER ||
-        node.getType() == ASTNodeType.INTEGER){
-      System.out.printf(printPrefix+node.getType().getPrintName()+"\n",node.getValue());
-    }
-    else if(node.getType() == ASTNodeType.STRING)
-      System.out.printf(printPrefix+node.getType().getPrintName()+"\n",node.getValue());
-    else
-      System.out.println(printPrefix+node.getType().getPrintName());
+  /**
+   * @param parallel if true, {@link #standardize()} and {@link #createDeltas()} use the common
+   *        fork-join pool for trees of at least Standardizer.PARALLEL_THRESHOLD nodes. The results
+   *        (delta indices included) are exactly the same either way.
+   */
+  public void setParallel(boolean parallel){
+    this.parallel = parallel;
   }
 
   //standardize the current tree
   public void standardize(){
-    standardize(root);
+    if(parallel)
+      new Standardizer(nodes).standardize(root, ForkJoinPool.commonPool());
+    else
+      new Standardizer(nodes).standardize(root);
     standardized = true;
   }
 
-  // bottom up standardization
-  private void standardize(ASTNode node){
-    //standardize the children first
-    if(node.getChild()!=null){
-      ASTNode childNode = node.getChild();
-      while(childNode!=null){
-        standardize(childNode);
-        childNode = childNode.getSibling();
-      }
-    }
+  /**
+   * Inlines small let-bound functions at their call sites (see {@link Inliner}). Call it before
+   * {@link #foldConstants()} and {@link #shareCommonSubtrees()}.
+   */
+  public void inlineFunctions(){
+    if(!standardized)
+      throw new RuntimeException("AST has NOT been standardized!"); //should never happen
+    new Inliner(nodes).inline(root);
+  }
 
-    //standardizing the node after all children are standardized
-
-
-    switch(node.getType()){
-      case LET:    //standardization for LET
-        ASTNode equalNode = node.getChild();
-        if(equalNode.getType()!=ASTNodeType.EQUAL)
-          throw new StandardizationException("LET/WHERE: left child is not EQUAL"); //safety
-        ASTNode e = equalNode.getChild().getSibling();
-        equalNode.getChild().setSibling(equalNode.getSibling());
-        equalNode.setSibling(e);
-        equalNode.setType(ASTNodeType.LAMBDA);
-        node.setType(ASTNodeType.GAMMA);
-        break;
-      case WHERE: //standardization for WHERE
-        equalNode = node.getChild().getSibling();
-        node.getChild().setSibling(null);
-        equalNode.setSibling(node.getChild());
-        node.setChild(equalNode);
-        node.setType(ASTNodeType.LET);
-        standardize(node);
-        break;
-      case FCNFORM: //standardization for FCNFORM
-        ASTNode childSibling = node.getChild().getSibling();
-        node.getChild().setSibling(constructLambdaChain(childSibling));
-        node.setType(ASTNodeType.EQUAL);
-        break;
-      case AT: //standardization for AT
-        ASTNode e1 = node.getChild();
-        ASTNode n = e1.getSibling();
-        ASTNode e2 = n.getSibling();
-        ASTNode gammaNode = new ASTNode();
-        gammaNode.setType(ASTNodeType.GAMMA);
-        gammaNode.setChild(n);
-        n.setSibling(e1);
-        e1.setSibling(null);
-        gammaNode.setSibling(e2);
-        node.setChild(gammaNode);
-        node.setType(ASTNodeType.GAMMA);
-        break;
-      case WITHIN: //standardization for WITHIN
-        if(node.getChild().getType()!=ASTNodeType.EQUAL || node.getChild().getSibling().getType()!=ASTNodeType.EQUAL)
-          throw new StandardizationException("WITHIN: one of the children is not EQUAL"); //error handle
-        ASTNode x1 = node.getChild().getChild();
-        e1 = x1.getSibling();
-        ASTNode x2 = node.getChild().getSibling().getChild();
-        e2 = x2.getSibling();
-        ASTNode lambdaNode = new ASTNode();
-        lambdaNode.setType(ASTNodeType.LAMBDA);
-        x1.setSibling(e2);
-        lambdaNode.setChild(x1);
-        lambdaNode.setSibling(e1);
-        gammaNode = new ASTNode();
-        gammaNode.setType(ASTNodeType.GAMMA);
-        gammaNode.setChild(lambdaNode);
-        x2.setSibling(gammaNode);
-        node.setChild(x2);
-        node.setType(ASTNodeType.EQUAL);
-        break;
-      case SIMULTDEF: //standardization for SIMULTDEF
-        ASTNode commaNode = new ASTNode();
-        commaNode.setType(ASTNodeType.COMMA);
-        ASTNode tauNode = new ASTNode();
-        tauNode.setType(ASTNodeType.TAU);
-        ASTNode childNode = node.getChild();
-        while(childNode!=null){
-          populateCommaAndTauNode(childNode, commaNode, tauNode);
-          childNode = childNode.getSibling();
-        }
-        commaNode.setSibling(tauNode);
-        node.setChild(commaNode);
-        node.setType(ASTNodeType.EQUAL);
-        break;
-      case REC: //standardization for REC
-        childNode = node.getChild();
-        if(childNode.getType()!=ASTNodeType.EQUAL)
-          throw new StandardizationException("REC: child is not EQUAL"); //error handle
-        ASTNode x = childNode.getChild();
-        lambdaNode = new ASTNode();
-        lambdaNode.setType(ASTNodeType.LAMBDA);
-        lambdaNode.setChild(x); //x is already attached to e
-        ASTNode yStarNode = new ASTNode();
-        yStarNode.setType(ASTNodeType.YSTAR);
-        yStarNode.setSibling(lambdaNode);
-        gammaNode = new ASTNode();
-        gammaNode.setType(ASTNodeType.GAMMA);
-        gammaNode.setChild(yStarNode);
-        ASTNode xWithSiblingGamma = new ASTNode(); //same as x except the sibling is not e but gamma
-        xWithSiblingGamma.setChild(x.getChild());
-        xWithSiblingGamma.setSibling(gammaNode);
-        xWithSiblingGamma.setType(x.getType());
-        xWithSiblingGamma.setValue(x.getValue());
-        node.setChild(xWithSiblingGamma);
-        node.setType(ASTNodeType.EQUAL);
-        break;
-      case LAMBDA: //standardization for LAMBDA
-
-        childSibling = node.getChild().getSibling();
-        node.getChild().setSibling(constructLambdaChain(childSibling));
-        break;
-      default:   // Node types we do NOT standardize will be ignored: OR AND + - * / EXP GR GE LS LE EQ NE NOT NEG CONDITIONAL TAU COMMA
-        break;
-    }
+  /**
+   * Folds constant expressions in the standardized tree (see {@link ConstantFolder}). Call it before
+   * {@link #shareCommonSubtrees()}.
+   */
+  public void foldConstants(){
+    if(!standardized)
+      throw new RuntimeException("AST has NOT been standardized!"); //should never happen
+    new ConstantFolder(nodes).fold(root);
+  }
+
+  /**
+   * Removes unused bindings whose expressions have no effect (see {@link DeadBindingEliminator}). Call it
+   * after {@link #foldConstants()} and before {@link #shareCommonSubtrees()}.
+   * @return a description of each binding removed
+   */
+  public List<String> removeDeadBindings(){
+    if(!standardized)
+      throw new RuntimeException("AST has NOT been standardized!"); //should never happen
+    return new DeadBindingEliminator(nodes).eliminate(root);
   }
 
-  
-  private void populateCommaAndTauNode(ASTNode equalNode, ASTNode commaNode, ASTNode tauNode){
-    if(equalNode.getType()!=ASTNodeType.EQUAL)
-      throw new StandardizationException("SIMULTDEF: one of the children is not EQUAL"); //error handle
-    ASTNode x = equalNode.getChild();
-    ASTNode e = x.getSibling();
-    setChild(commaNode, x);
-    setChild(tauNode, e);
+  /**
+   * Binds repeated pure expressions once (see {@link CommonSubexpressionEliminator}). Call it before
+   * {@link #shareCommonSubtrees()}.
+   * @return the number of expressions bound
+   */
+  public int eliminateCommonSubexpressions(){
+    if(!standardized)
+      throw new RuntimeException("AST has NOT been standardized!"); //should never happen
+    return new CommonSubexpressionEliminator(nodes).eliminate(root);
   }
 
+  /**
+   * Marks the operators and conditionals whose operands are proven to have the types they need (see
+   * {@link TypeInferencer}). Call it after the other passes and before {@link #shareCommonSubtrees()}.
+   * @return how many of them were marked, e.g. {@code 12 of 20 operation sites (60%)}, or null if there are none
+   */
+  public String inferTypes(){
+    if(!standardized)
+      throw new RuntimeException("AST has NOT been standardized!"); //should never happen
+    return new TypeInferencer(nodes).infer(root);
+  }
 
-  
-  private void setChild(ASTNode parentNode, ASTNode childNode){ // creates a new child of the parent or appends the child 
-                                                                //node passed in as the last sibling of the parent's existing children 
-    if(parentNode.getChild()==null)
-      parentNode.setChild(childNode);
-    else{
-      ASTNode lastSibling = parentNode.getChild();
-      while(lastSibling.getSibling()!=null)
-        lastSibling = lastSibling.getSibling();
-      lastSibling.setSibling(childNode);
-    }
-    childNode.setSibling(null);
+  /**
+   * @param lazy if true, {@link #createDeltas()} builds only the root delta's body; the body of every
+   *        other delta is built the first time it is needed (see {@link Delta#getBody()}). The deltas
+   *        get the same indices either way.
+   */
+  public void setLazy(boolean lazy){
+    this.lazy = lazy;
   }
 
-  private ASTNode constructLambdaChain(ASTNode node){
-    if(node.getSibling()==null)
-      return node;
-    
-    ASTNode lambdaNode = new ASTNode();
-    lambdaNode.setType(ASTNodeType.LAMBDA);
-    lambdaNode.setChild(node);
-    if(node.getSibling().getSibling()!=null)
-      node.setSibling(constructLambdaChain(node.getSibling()));
-    return lambdaNode;
+  /**
+   * @param shortCircuit if true, {@link #createDeltas()} compiles {@code a & b} and {@code a or b} into
+   *        conditionals, so that b is evaluated only if a does not decide the result (and after a, not
+   *        before it). If b is evaluated and is not a truthvalue, the error is the same as otherwise.
+   */
+  public void setShortCircuit(boolean shortCircuit){
+    this.shortCircuit = shortCircuit;
   }
 
- 
   public Delta createDeltas(){ //delta structure creation
-    pendingDeltaBodyQueue = new ArrayDeque<PendingDeltaBody>();
+    rootNode = nodes.materialize(root);
+    freeVars = new FreeVariableAnalyzer().analyze(rootNode);
     deltaIndex = 0;
-    currentDelta = createDelta(root);
-    processPendingDeltaStack();
+    if(lazy){
+      firstNewDeltaIndices = numberDeltas();
+      PendingDeltaBody rootDeltaBody = createDelta(rootNode);
+      makeLazy(rootDeltaBody, 0);
+      rootDelta = rootDeltaBody.delta;
+      return rootDelta;
+    }
+
+    PendingDeltaBody rootDeltaBody = createDelta(rootNode);
+    rootDelta = rootDeltaBody.delta;
+    rootDelta.setIndex(deltaIndex++);
+
+    //breadth first: the bodies of one level are independent of each other and the deltas they
+    //contain are numbered in order once they are all built, as if they had been built one by one
+    boolean buildInParallel = parallel && nodes.size()>=Standardizer.PARALLEL_THRESHOLD;
+    List<PendingDeltaBody> level = new ArrayList<PendingDeltaBody>();
+    level.add(rootDeltaBody);
+    while(!level.isEmpty()){
+      if(buildInParallel && level.size()>1)
+        buildDeltaBodies(level, ForkJoinPool.commonPool());
+      else{
+        for(PendingDeltaBody pendingDeltaBody: level)
+          buildDeltaBody(pendingDeltaBody);
+      }
+
+      List<PendingDeltaBody> nextLevel = new ArrayList<PendingDeltaBody>();
+      for(PendingDeltaBody pendingDeltaBody: level){
+        for(PendingDeltaBody newDeltaBody: pendingDeltaBody.newDeltaBodies){
+          newDeltaBody.delta.setIndex(deltaIndex++);
+          nextLevel.add(newDeltaBody);
+        }
+        pendingDeltaBody.newDeltaBodies = null;
+      }
+      level = nextLevel;
+    }
     return rootDelta;
   }
 
-  private Delta createDelta(ASTNode startBodyNode){
+  /**
+   * @return the delta whose body starts at startBodyNode, along with its (yet to be built) body; the
+   *         index of the delta is not set
+   */
+  private PendingDeltaBody createDelta(ASTNode startBodyNode){
+    return createDelta(startBodyNode, new Delta());
+  }
+
+  /**
+   * @param d the (new) delta, {@link Let} or {@link Rec}
+   */
+  private PendingDeltaBody createDelta(ASTNode startBodyNode, Delta d){
     //initialization
     PendingDeltaBody pendingDelta = new PendingDeltaBody();
     pendingDelta.startNode = startBodyNode;
     pendingDelta.body = new Stack<ASTNode>();
-    pendingDeltaBodyQueue.add(pendingDelta);
+    pendingDelta.newDeltaBodies = new ArrayList<PendingDeltaBody>();
     
-    Delta d = new Delta();
     d.setBody(pendingDelta.body);
-    d.setIndex(deltaIndex++);
-    currentDelta = d;
-    
-    if(startBodyNode==root)
-      rootDelta = currentDelta;
-    
-    return d;
+    pendingDelta.delta = d;
+    return pendingDelta;
+  }
+
+  /**
+   * Works out the indices {@link #createDeltas()} would give the deltas, without building any bodies.
+   * Deltas are numbered breadth first, so the deltas for the lambdas in one body get consecutive
+   * indices, in the order {@link #buildDeltaBody(PendingDeltaBody)} finds them.
+   * @return for each delta index, the index of the first delta whose lambda is in its body
+   */
+  private int[] numberDeltas(){
+    int[] firstNewDeltaIndices = new int[64];
+    int numDeltas = 1;
+    ArrayDeque<ASTNode> pendingDeltaBodies = new ArrayDeque<ASTNode>();
+    pendingDeltaBodies.add(rootNode);
+    ArrayDeque<ASTNode> pendingNodes = new ArrayDeque<ASTNode>();
+    List<ASTNode> children = new ArrayList<ASTNode>();
+    for(int index = 0; !pendingDeltaBodies.isEmpty(); index++){
+      if(index==firstNewDeltaIndices.length)
+        firstNewDeltaIndices = Arrays.copyOf(firstNewDeltaIndices, index*2);
+      firstNewDeltaIndices[index] = numDeltas;
+
+      //same traversal as buildDeltaBody()
+      pendingNodes.push(pendingDeltaBodies.poll());
+      while(!pendingNodes.isEmpty()){
+        ASTNode node = pendingNodes.pop();
+        if(node.getType()==ASTNodeType.LAMBDA){
+          pendingDeltaBodies.add(node.getChild().getSibling());
+          numDeltas++;
+        }
+        else if(node.getType()==ASTNodeType.CONDITIONAL){
+          ASTNode conditionNode = node.getChild();
+          ASTNode thenNode = conditionNode.getSibling();
+          pendingNodes.push(conditionNode);
+          pendingNodes.push(thenNode.getSibling());
+          pendingNodes.push(thenNode);
+        }
+        else{
+          children.clear();
+          for(ASTNode childNode = node.getChild(); childNode!=null; childNode = childNode.getSibling())
+            children.add(childNode);
+          for(int i = children.size()-1; i >= 0; i--) //last child pushed first, so the first child is traversed first
+            pendingNodes.push(children.get(i));
+        }
+      }
+    }
+    return firstNewDeltaIndices;
+  }
+
+  /**
+   * Makes the body of a delta (with the given index) get built on first use.
+   */
+  private void makeLazy(PendingDeltaBody pendingDelta, int index){
+    pendingDelta.delta.setIndex(index);
+    pendingDelta.delta.setBodyBuilder(() -> {
+      buildDeltaBody(pendingDelta);
+      int newDeltaIndex = firstNewDeltaIndices[index];
+      for(PendingDeltaBody newDeltaBody: pendingDelta.newDeltaBodies)
+        makeLazy(newDeltaBody, newDeltaIndex++);
+      pendingDelta.newDeltaBodies = null;
+      return pendingDelta.body;
+    });
   }
 
-  private void processPendingDeltaStack(){
-    while(!pendingDeltaBodyQueue.isEmpty()){
-      PendingDeltaBody pendingDeltaBody = pendingDeltaBodyQueue.pop();
-      buildDeltaBody(pendingDeltaBody.startNode, pendingDeltaBody.body);
+  private void buildDeltaBodies(List<PendingDeltaBody> level, ForkJoinPool pool){
+    int numBatches = Math.min(level.size(), pool.getParallelism()*4);
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for(int i = 0; i < numBatches; i++){
+      final List<PendingDeltaBody> batch = level.subList(level.size()*i/numBatches, level.size()*(i+1)/numBatches);
+      tasks.add(() -> {
+        for(PendingDeltaBody pendingDeltaBody: batch)
+          buildDeltaBody(pendingDeltaBody);
+        return null;
+      });
+    }
+    try{
+      for(Future<Void> future: pool.invokeAll(tasks))
+        future.get();
+    }catch(InterruptedException e){
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while building deltas", e);
+    }catch(ExecutionException e){
+      if(e.getCause() instanceof RuntimeException)
+        throw (RuntimeException)e.getCause();
+      throw new IllegalStateException(e.getCause());
     }
   }
-  
-  private void buildDeltaBody(ASTNode node, Stack<ASTNode> body){
-    if(node.getType()==ASTNodeType.LAMBDA){ //new delta creation
-      Delta d = createDelta(node.getChild().getSibling()); //new delta body
-      if(node.getChild().getType()==ASTNodeType.COMMA){ //the left child of the lambda is the bound variable
-        ASTNode commaNode = node.getChild();
-        ASTNode childNode = commaNode.getChild();
-        while(childNode!=null){
-          d.addBoundVars(childNode.getValue());
-          childNode = childNode.getSibling();
+
+  /**
+   * Builds the body of a delta, putting the deltas for the lambdas in it in its newDeltaBodies, in the order
+   * they are found.
+   */
+  private void buildDeltaBody(PendingDeltaBody pendingDeltaBody){ //explicit stack, so neither depth nor width matters
+    ASTNode startNode = pendingDeltaBody.startNode;
+    Stack<ASTNode> startBody = pendingDeltaBody.body;
+    List<PendingDeltaBody> newDeltaBodies = pendingDeltaBody.newDeltaBodies;
+    String recName = pendingDeltaBody.recName;
+
+    //the bodies whose first node is in tail position, if this is (in) the body of a rec function
+    Set<Stack<ASTNode>> tailBodies = Collections.newSetFromMap(new IdentityHashMap<Stack<ASTNode>, Boolean>());
+    if(recName!=null && pendingDeltaBody.numLambdasLeft==0)
+      tailBodies.add(startBody);
+
+    //each pending entry is a node and the body its preorder traversal goes into
+    ArrayDeque<ASTNode> pendingNodes = new ArrayDeque<ASTNode>();
+    ArrayDeque<Stack<ASTNode>> pendingBodies = new ArrayDeque<Stack<ASTNode>>();
+    pendingNodes.push(startNode);
+    pendingBodies.push(startBody);
+    while(!pendingNodes.isEmpty()){
+      ASTNode node = pendingNodes.pop();
+      Stack<ASTNode> body = pendingBodies.pop();
+      boolean tail = body.isEmpty() && tailBodies.contains(body); //nothing was pushed before the node, so its value is the body's
+
+      if(node.getType()==ASTNodeType.LAMBDA){ //new delta creation
+        body.push(createDelta(node, new Delta(), newDeltaBodies)); //add this new delta to the delta's body
+        if(recName!=null && pendingDeltaBody.numLambdasLeft>0) //the next lambda in the chain of a rec function
+          passOnRecName(pendingDeltaBody, newDeltaBodies.get(0), pendingDeltaBody.numLambdasLeft-1);
+        continue;
+      }
+      else if(tail && node.getType()==ASTNodeType.GAMMA && isSelfCall(node, recName, pendingDeltaBody.numParams)){
+        // f a1 ... an, in tail position in the body of the rec function f, becomes TailCall a1 ... an
+        TailCall tailCall = new TailCall(recName);
+        tailCall.setSourceLineNumber(node.getSourceLineNumber());
+        body.push(tailCall);
+        for(ASTNode gammaNode = node; gammaNode.getType()==ASTNodeType.GAMMA; gammaNode = gammaNode.getChild()){
+          pendingNodes.push(gammaNode.getChild().getSibling()); //an first, so a1 is popped (and hence traversed) first
+          pendingBodies.push(body);
         }
+        continue;
+      }
+      else if(node.getType()==ASTNodeType.GAMMA && isLet(node)){
+        // gamma (lambda x. B) E becomes Let E, where the Let stands for the delta of the lambda
+        body.push(createDelta(node.getChild(), new Let(), newDeltaBodies));
+        if(tail && !isBoundBy(recName, node.getChild())) //B is in tail position too
+          passOnRecName(pendingDeltaBody, newDeltaBodies.get(newDeltaBodies.size()-1), 0);
+        pendingNodes.push(node.getChild().getSibling());
+        pendingBodies.push(body);
+        continue;
+      }
+      else if(node.getType()==ASTNodeType.GAMMA && isRecursiveDefinition(node)){
+        // gamma Y* (lambda f. lambda x. B) becomes Rec, where the Rec stands for the delta of lambda f (and
+        // likewise for simultaneous definitions, whose lambda has a comma of variables and a tau of lambdas)
+        ASTNode lambdaNode = node.getChild().getSibling();
+        body.push(createDelta(lambdaNode, new Rec(), newDeltaBodies));
+        if(lambdaNode.getChild().getType()!=ASTNodeType.COMMA)
+          setRecName(newDeltaBodies.get(newDeltaBodies.size()-1), lambdaNode);
+        continue;
+      }
+      else if(node.getType()==ASTNodeType.GAMMA && isCurriedCall(node)){
+        // gamma (... (gamma f a1) ...) an becomes Application(n) f a1 ... an
+        List<ASTNode> rands = new ArrayList<ASTNode>(); //an, ..., a1
+        ASTNode ratorNode = node;
+        do{
+          rands.add(ratorNode.getChild().getSibling());
+          ratorNode = ratorNode.getChild();
+        }while(isCall(ratorNode));
+        Application application = new Application(rands.size());
+        application.setSourceLineNumber(node.getSourceLineNumber());
+        body.push(application);
+
+        //popped (and hence traversed) in the order f, a1, ..., an, as they are otherwise
+        for(ASTNode randNode: rands){
+          pendingNodes.push(randNode);
+          pendingBodies.push(body);
+        }
+        pendingNodes.push(ratorNode);
+        pendingBodies.push(body);
+        continue;
+      }
+      else if(node.getType()==ASTNodeType.CONDITIONAL){
+        //to enable programming order evaluation, traverse the children in reverse order so the condition leads
+        // cond -> then else becomes then else Beta cond
+        ASTNode conditionNode = node.getChild();
+        ASTNode thenNode = conditionNode.getSibling();
+        ASTNode elseNode = thenNode.getSibling();
+        
+        
+        Beta betaNode = new Beta(); //beta node addition
+        betaNode.setConditionProven(node instanceof ProvenOperation);
+        body.push(betaNode); //then and else go into the Beta's own bodies, so pushing it first is fine
+        if(tail){
+          tailBodies.add(betaNode.getThenBody());
+          tailBodies.add(betaNode.getElseBody());
+        }
+        
+        //popped (and hence traversed) in the order then, else, condition
+        pendingNodes.push(conditionNode);
+        pendingBodies.push(body);
+        pendingNodes.push(elseNode);
+        pendingBodies.push(betaNode.getElseBody());
+        pendingNodes.push(thenNode);
+        pendingBodies.push(betaNode.getThenBody());
+        continue;
       }
-      else
-        d.addBoundVars(node.getChild().getValue());
-      body.push(d); //add this new delta to the delta's body
-      return;
-    }
-    else if(node.getType()==ASTNodeType.CONDITIONAL){
-      //to enable programming order evaluation, traverse the children in reverse order so the condition leads
-      // cond -> then else becomes then else Beta cond
-      ASTNode conditionNode = node.getChild();
-      ASTNode thenNode = conditionNode.getSibling();
-      ASTNode elseNode = thenNode.getSibling();
-      
-      
-      Beta betaNode = new Beta(); //beta node addition
-      
-      buildDeltaBody(thenNode, betaNode.getThenBody());
-      buildDeltaBody(elseNode, betaNode.getElseBody());
-      
-      body.push(betaNode);
       
-      buildDeltaBody(conditionNode, body);
+      else if(shortCircuit && (node.getType()==ASTNodeType.AND || node.getType()==ASTNodeType.OR)){
+        // a & b becomes Beta a, where Beta.thenBody = & true b (which checks that b is a truthvalue)
+        // and Beta.elseBody = false; a or b becomes Beta a, where Beta.thenBody = true and
+        // Beta.elseBody = or false b
+        ASTNode leftNode = node.getChild();
+        ASTNode rightNode = leftNode.getSibling();
+        boolean and = node.getType()==ASTNodeType.AND;
+
+        Beta betaNode = new Beta();
+        betaNode.setConditionProven(node instanceof ProvenOperation); //a is a truthvalue too
+        body.push(betaNode);
+        Stack<ASTNode> rightBody = and? betaNode.getThenBody() : betaNode.getElseBody();
+        Stack<ASTNode> decidedBody = and? betaNode.getElseBody() : betaNode.getThenBody();
+        decidedBody.push(truthValue(!and, node.getSourceLineNumber()));
+        rightBody.push(node);
+        rightBody.push(truthValue(and, node.getSourceLineNumber()));
+
+        //popped (and hence traversed) in the order left, right, as they are otherwise
+        pendingNodes.push(rightNode);
+        pendingBodies.push(rightBody);
+        pendingNodes.push(leftNode);
+        pendingBodies.push(body);
+        continue;
+      }
       
-      return;
+      //preorder traversal
+      body.push(node);
+      int numChildren = 0;
+      for(ASTNode childNode = node.getChild(); childNode!=null; childNode = childNode.getSibling())
+        numChildren++;
+      ASTNode[] children = new ASTNode[numChildren];
+      int i = 0;
+      for(ASTNode childNode = node.getChild(); childNode!=null; childNode = childNode.getSibling())
+        children[i++] = childNode;
+      while(i>0){ //last child pushed first, so the first child is traversed first
+        pendingNodes.push(children[--i]);
+        pendingBodies.push(body);
+      }
     }
-    
-    //preorder traversal
-    body.push(node);
-    ASTNode childNode = node.getChild();
-    while(childNode!=null){
-      buildDeltaBody(childNode, body);
-      childNode = childNode.getSibling();
+  }
+
+  private ASTNode truthValue(boolean value, int sourceLineNumber){
+    FoldedConstant truthValue = new FoldedConstant();
+    truthValue.setType(value? ASTNodeType.TRUE : ASTNodeType.FALSE);
+    truthValue.setValue(Boolean.toString(value));
+    truthValue.setSourceLineNumber(sourceLineNumber);
+    return truthValue;
+  }
+
+  /**
+   * @return true if gamma applies a lambda right away
+   */
+  private boolean isLet(ASTNode gamma){
+    return gamma.getChild().getType()==ASTNodeType.LAMBDA;
+  }
+
+  /**
+   * @return true if gamma is a rec definition: Y* applied to either a lambda of one variable whose body is a
+   *         lambda, or a lambda of several variables whose body is a tau of as many lambdas (simultaneous
+   *         definitions)
+   */
+  private boolean isRecursiveDefinition(ASTNode gamma){
+    ASTNode ratorNode = gamma.getChild();
+    ASTNode randNode = ratorNode.getSibling();
+    if(ratorNode.getType()!=ASTNodeType.YSTAR || randNode.getType()!=ASTNodeType.LAMBDA)
+      return false;
+    ASTNode variableNode = randNode.getChild();
+    ASTNode bodyNode = variableNode.getSibling();
+    if(variableNode.getType()!=ASTNodeType.COMMA)
+      return bodyNode.getType()==ASTNodeType.LAMBDA;
+    if(bodyNode.getType()!=ASTNodeType.TAU)
+      return false;
+    ASTNode elementNode = bodyNode.getChild();
+    for(ASTNode childNode = variableNode.getChild(); childNode!=null; childNode = childNode.getSibling()){
+      if(elementNode==null || elementNode.getType()!=ASTNodeType.LAMBDA)
+        return false;
+      elementNode = elementNode.getSibling();
+    }
+    return elementNode==null;
+  }
+
+  /**
+   * @return true if node is a gamma that applies something other than a lambda, and is not a rec definition
+   */
+  private boolean isCall(ASTNode node){
+    return node.getType()==ASTNodeType.GAMMA && !isLet(node) && !isRecursiveDefinition(node);
+  }
+
+  /**
+   * Notes that the body of the Rec being built is the chain of lambdas of the rec function defined by lambdaNode
+   * (lambda f. lambda x1. ... lambda xn. B), so its self calls in tail position in B can be made TailCalls.
+   */
+  private void setRecName(PendingDeltaBody recBody, ASTNode lambdaNode){
+    String recName = lambdaNode.getChild().getValue();
+    int numParams = 0;
+    for(ASTNode bodyNode = lambdaNode.getChild().getSibling(); bodyNode.getType()==ASTNodeType.LAMBDA;
+        bodyNode = bodyNode.getChild().getSibling()){
+      if(isBoundBy(recName, bodyNode)) //f is not the rec function in B
+        return;
+      numParams++;
+    }
+    recBody.recName = recName;
+    recBody.numParams = numParams;
+    recBody.numLambdasLeft = numParams;
+  }
+
+  private void passOnRecName(PendingDeltaBody from, PendingDeltaBody to, int numLambdasLeft){
+    to.recName = from.recName;
+    to.numParams = from.numParams;
+    to.numLambdasLeft = numLambdasLeft;
+  }
+
+  /**
+   * @return true if name is one of the variables of lambdaNode
+   */
+  private boolean isBoundBy(String name, ASTNode lambdaNode){
+    ASTNode variableNode = lambdaNode.getChild();
+    if(variableNode.getType()!=ASTNodeType.COMMA)
+      return name.equals(variableNode.getValue());
+    for(ASTNode childNode = variableNode.getChild(); childNode!=null; childNode = childNode.getSibling()){
+      if(name.equals(childNode.getValue()))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return true if gamma is 'name a1 ... an', where n is numRands
+   */
+  private boolean isSelfCall(ASTNode gamma, String name, int numRands){
+    ASTNode ratorNode = gamma;
+    for(int i = 0; i < numRands; i++){
+      if(ratorNode.getType()!=ASTNodeType.GAMMA)
+        return false;
+      ratorNode = ratorNode.getChild();
+    }
+    return ratorNode.getType()==ASTNodeType.IDENTIFIER && name.equals(ratorNode.getValue());
+  }
+
+  /**
+   * @return true if gamma applies the result of another call
+   */
+  private boolean isCurriedCall(ASTNode gamma){
+    return isCall(gamma.getChild());
+  }
+
+  /**
+   * @param d the (new) delta for the lambda, which gets its bound variables
+   * @param newDeltaBodies where the body of the delta, yet to be built, goes
+   */
+  private Delta createDelta(ASTNode lambdaNode, Delta d, List<PendingDeltaBody> newDeltaBodies){
+    newDeltaBodies.add(createDelta(lambdaNode.getChild().getSibling(), d)); //new delta body
+    if(!(d instanceof Let)) //a let is evaluated in place, not captured
+      d.setFreeVars(freeVars.get(lambdaNode));
+    if(lambdaNode.getChild().getType()==ASTNodeType.COMMA){ //the left child of the lambda is the bound variable
+      ASTNode commaNode = lambdaNode.getChild();
+      ASTNode childNode = commaNode.getChild();
+      while(childNode!=null){
+        d.addBoundVars(childNode.getValue());
+        childNode = childNode.getSibling();
+      }
     }
+    else
+      d.addBoundVars(lambdaNode.getChild().getValue());
+    return d;
   }
 
   private class PendingDeltaBody{
+    Delta delta;
     Stack<ASTNode> body;
     ASTNode startNode;
+    List<PendingDeltaBody> newDeltaBodies;
+    String recName; //if not null, the body is (on the way to) that of the function bound to this rec variable
+    int numParams; //the number of lambdas in the chain of that function
+    int numLambdasLeft; //how many of them are yet to come; if none, this is the body of the function, or of a let in tail position in it
+  }
+
+  /**
+   * Replaces structurally identical subtrees with a single shared one (see {@link HashConser}).
+   * Call at most once, after the tree has been standardized.
+   * @return number of duplicate nodes that were removed from the tree
+   */
+  public int shareCommonSubtrees(){
+    HashConser hashConser = new HashConser(nodes);
+    root = hashConser.hashCons(root);
+    return hashConser.getDuplicatesRemoved();
   }
 
   public boolean isStandardized(){
     return standardized;
   }
-}
-
-
 
+  /**
+   * @return number of nodes created while building (and standardizing) this tree
+   */
+  public int size(){
+    return nodes.size();
+  }
+}
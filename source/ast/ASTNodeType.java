@@ -67,7 +67,12 @@ public enum ASTNodeType{
   BETA(""),
   DELTA(""),
   ETA(""),
-  TUPLE("");
+  TUPLE(""),
+  BIND(""), //a let on the control stack (see csem.Let)
+  UNBIND(""), //end of the body of a let on the control stack
+  APPLY(""), //a curried call on the control stack (see csem.Application)
+  FIX(""), //a rec definition on the control stack (see csem.Rec)
+  JUMP(""); //a self tail call on the control stack (see csem.TailCall)
   
   private String printName; //used for printing AST representation
   
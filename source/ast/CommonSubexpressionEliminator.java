@@ -0,0 +1,590 @@
+package ast;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import csem.CSEMachine;
+
+/**
+ * Binds repeated pure expressions of a standardized tree in a {@link NodeTable} once, so that they are
+ * evaluated once. Run it after standardization and before the delta bodies are built (and before
+ * {@link HashConser}, since it rewrites nodes in place).
+ *
+ * <p>Two expressions are the same if they have the same shape and their variables refer to the same
+ * bindings. An expression is pure if it is made up of literals, variables, operators, taus, conditionals
+ * and calls: of built-ins other than Print, and of any function at all, provided no function in the program
+ * can print (that is, Print is only ever called directly, outside every function body; and neither Print nor
+ * Conc is ever passed around). Expressions that are pure, use a bound variable, and either make a call or are at
+ * least {@link #MIN_SIZE} nodes are candidates.
+ *
+ * <p>A candidate that occurs more than once is bound by a new let, wrapped around the innermost region that
+ * contains all of its occurrences (a region is a part of the tree that is evaluated whenever its root is: a
+ * function body, an arm of a conditional, or the right operand of & or or) and is in the scope of its variables. At least one occurrence must
+ * not be inside a function or a conditional arm nested in the region, so that the expression was going to be
+ * evaluated anyway; and the region must not call Print, so that the output before an error in the expression
+ * stays as it was. The occurrences are replaced with the new variable. This is repeated until nothing more is
+ * bound, which takes care of candidates within candidates.
+ */
+public class CommonSubexpressionEliminator{
+  public static final int MIN_SIZE = 5; //size (in nodes) of the smallest candidate that makes no call
+
+  //what to do with a pending node
+  private static final int VISIT = 0; //number the subtree rooted at the node
+  private static final int EXIT = 1; //the children of the node are numbered: number the node itself
+
+  private NodeTable nodes;
+  private Map<String, ArrayDeque<Integer>> scope; //for each name, the bindings in scope, innermost first
+  private List<Integer> bindingLambdas; //the lambda that makes each binding
+  private Map<String, Integer> freeNames; //numbers (negative) for names that are not bound
+  private Set<String> names; //every name in the tree
+  private Map<Key, Integer> valueNumbers;
+  private int numValueNumbers;
+  private boolean functionsPure; //no function in the program can print
+  private List<Integer> candidates;
+  private int[] pendingActions;
+  private int[] pendingNodes;
+  private int top;
+  private int freshNames;
+
+  //for each node
+  private int[] parent;
+  private int[] depth;
+  private int[] region; //the root of the innermost region the node is in
+  private int[] valueNumber; //equal for nodes that are the same expression
+  private int[] size;
+  private int[] home; //the innermost lambda that binds a variable the node uses (NONE if it uses none)
+  private BitSet pure; //pure, if every function it may call is
+  private BitSet callsFunction; //calls something other than a built-in
+  private BitSet makesCall;
+  private BitSet insideFunction; //inside the body of a function (a lambda other than that of a let)
+  private BitSet letLambdas;
+
+  public CommonSubexpressionEliminator(NodeTable nodes){
+    this.nodes = nodes;
+  }
+
+  private static class Key{
+    private final int[] fields;
+
+    Key(int[] fields){
+      this.fields = fields;
+    }
+
+    @Override
+    public int hashCode(){
+      return Arrays.hashCode(fields);
+    }
+
+    @Override
+    public boolean equals(Object other){
+      return other instanceof Key && Arrays.equals(fields, ((Key)other).fields);
+    }
+  }
+
+  /**
+   * Binds the repeated pure expressions in the tree rooted at root, in place. Uses an explicit stack, so the
+   * depth of the tree does not matter.
+   * @return the number of expressions bound
+   */
+  public int eliminate(int root){
+    freshNames = 0;
+    int numBound = 0;
+    int numBoundInRound;
+    do{
+      number(root);
+      numBoundInRound = bindRepeated();
+      numBound += numBoundInRound;
+    }while(numBoundInRound>0);
+    return numBound;
+  }
+
+  /**
+   * Numbers the expressions in the tree rooted at root and collects the candidates.
+   */
+  private void number(int root){
+    int numNodes = nodes.size();
+    scope = new HashMap<String, ArrayDeque<Integer>>();
+    bindingLambdas = new ArrayList<Integer>();
+    freeNames = new HashMap<String, Integer>();
+    names = new HashSet<String>();
+    valueNumbers = new HashMap<Key, Integer>();
+    numValueNumbers = 0;
+    functionsPure = true;
+    candidates = new ArrayList<Integer>();
+    parent = new int[numNodes];
+    depth = new int[numNodes];
+    region = new int[numNodes];
+    valueNumber = new int[numNodes];
+    size = new int[numNodes];
+    home = new int[numNodes];
+    pure = new BitSet(numNodes);
+    callsFunction = new BitSet(numNodes);
+    makesCall = new BitSet(numNodes);
+    insideFunction = new BitSet(numNodes);
+    letLambdas = new BitSet(numNodes);
+    pendingActions = new int[64];
+    pendingNodes = new int[64];
+    top = 0;
+
+    parent[root] = NodeTable.NONE;
+    region[root] = root;
+    push(VISIT, root);
+    while(top>0){
+      top--;
+      int node = pendingNodes[top];
+      if(pendingActions[top]==VISIT)
+        visit(node);
+      else
+        exit(node);
+    }
+  }
+
+  private void push(int action, int node){
+    if(top==pendingNodes.length){
+      pendingActions = Arrays.copyOf(pendingActions, top*2);
+      pendingNodes = Arrays.copyOf(pendingNodes, top*2);
+    }
+    pendingActions[top] = action;
+    pendingNodes[top++] = node;
+  }
+
+  /**
+   * Pushes a child of node to be visited, in the same region unless it starts a new one.
+   */
+  private void pushChild(int node, int child, boolean newRegion){
+    parent[child] = node;
+    depth[child] = depth[node]+1;
+    region[child] = newRegion? child : region[node];
+    if(insideFunction.get(node))
+      insideFunction.set(child);
+    push(VISIT, child);
+  }
+
+  private void visit(int node){
+    switch(nodes.getType(node)){
+      case IDENTIFIER:
+        visitIdentifier(node);
+        return;
+      case LAMBDA:
+        bindVariables(node);
+        push(EXIT, node);
+        int body = lambdaBody(node);
+        boolean function = !letLambdas.get(node);
+        pushChild(node, body, function);
+        if(function)
+          insideFunction.set(body);
+        return;
+      case CONDITIONAL:
+        push(EXIT, node);
+        int condition = nodes.getChild(node);
+        int thenArm = nodes.getSibling(condition);
+        pushChild(node, nodes.getSibling(thenArm), true);
+        pushChild(node, thenArm, true);
+        pushChild(node, condition, false);
+        return;
+      case AND:
+      case OR: //the right operand is not evaluated if short-circuiting (see AST.setShortCircuit(boolean))
+        push(EXIT, node);
+        int left = nodes.getChild(node);
+        pushChild(node, nodes.getSibling(left), true);
+        pushChild(node, left, false);
+        return;
+      case GAMMA:
+        if(nodes.getType(nodes.getChild(node))==ASTNodeType.LAMBDA)
+          letLambdas.set(nodes.getChild(node));
+        break;
+      default:
+        break;
+    }
+    push(EXIT, node);
+    for(int child = nodes.getChild(node); child!=NodeTable.NONE; child = nodes.getSibling(child))
+      pushChild(node, child, false);
+  }
+
+  private void visitIdentifier(int node){
+    String name = nodes.getValue(node);
+    names.add(name);
+    size[node] = 1;
+    home[node] = NodeTable.NONE;
+    ArrayDeque<Integer> bindings = scope.get(name);
+    int binding;
+    if(bindings!=null && !bindings.isEmpty()){
+      binding = bindings.peek();
+      home[node] = bindingLambdas.get(binding);
+      pure.set(node);
+    }
+    else{
+      Integer freeName = freeNames.get(name);
+      if(freeName==null){
+        freeName = -1-freeNames.size();
+        freeNames.put(name, freeName);
+      }
+      binding = freeName;
+      if(isBuiltIn(name)) //an undeclared variable is an error
+        pure.set(node);
+      if(escapes(node))
+        functionsPure = false;
+    }
+    valueNumber[node] = valueNumber(new int[]{ASTNodeType.IDENTIFIER.ordinal(), binding});
+  }
+
+  /**
+   * @return true if node is the built-in Print called from inside a function, or Print or Conc used other than
+   *         by calling it
+   */
+  private boolean escapes(int node){
+    switch(nodes.getValue(node)){
+      case "Print":
+      case "print":
+        return insideFunction.get(node) || !isRator(node);
+      case "Conc":
+      case "conc":
+        return !isRator(node) || !isRator(parent[node]);
+      default:
+        return false;
+    }
+  }
+
+  private boolean isRator(int node){
+    int parentNode = parent[node];
+    return parentNode!=NodeTable.NONE && nodes.getType(parentNode)==ASTNodeType.GAMMA && nodes.getChild(parentNode)==node;
+  }
+
+  private void exit(int node){
+    ASTNodeType type = nodes.getType(node);
+    if(type==ASTNodeType.LAMBDA){
+      unbindVariables(node);
+      valueNumber[node] = numValueNumbers++;
+      return;
+    }
+
+    boolean isPure = isExpression(type);
+    int nodeSize = 1;
+    int nodeHome = NodeTable.NONE;
+    int numChildren = 0;
+    for(int child = nodes.getChild(node); child!=NodeTable.NONE; child = nodes.getSibling(child)){
+      isPure = isPure && pure.get(child);
+      nodeSize += size[child];
+      if(home[child]!=NodeTable.NONE && (nodeHome==NodeTable.NONE || depth[home[child]]>depth[nodeHome]))
+        nodeHome = home[child];
+      if(callsFunction.get(child))
+        callsFunction.set(node);
+      if(makesCall.get(child))
+        makesCall.set(node);
+      numChildren++;
+    }
+    boolean candidate = true;
+    if(type==ASTNodeType.GAMMA){
+      makesCall.set(node);
+      switch(callee(nodes.getChild(node))){
+        case "Print":
+        case "print":
+          isPure = false;
+          break;
+        case "Conc": //only the first half of the call, which cannot be evaluated on its own
+        case "conc":
+          candidate = false;
+          break;
+        case "":
+          callsFunction.set(node);
+          break;
+        default:
+          break;
+      }
+    }
+    size[node] = nodeSize;
+    home[node] = nodeHome;
+    if(!isPure){
+      valueNumber[node] = numValueNumbers++;
+      return;
+    }
+
+    pure.set(node);
+    int[] fields = new int[3+numChildren];
+    fields[0] = type.ordinal();
+    fields[1] = nodes.getValueIndex(node);
+    fields[2] = nodes.isFoldedConstant(node)? 1 : 0;
+    int i = 3;
+    for(int child = nodes.getChild(node); child!=NodeTable.NONE; child = nodes.getSibling(child))
+      fields[i++] = valueNumber[child];
+    valueNumber[node] = valueNumber(fields);
+    if(candidate && numChildren>0 && nodeHome!=NodeTable.NONE && (makesCall.get(node) || nodeSize>=MIN_SIZE))
+      candidates.add(node);
+  }
+
+  private int valueNumber(int[] fields){
+    Key key = new Key(fields);
+    Integer number = valueNumbers.get(key);
+    if(number==null){
+      number = numValueNumbers++;
+      valueNumbers.put(key, number);
+    }
+    return number;
+  }
+
+  /**
+   * @return the name of the built-in a gamma with this rator calls ("Conc" for the second half of a call of
+   *         Conc), or "" if it calls something else
+   */
+  private String callee(int rator){
+    if(nodes.getType(rator)==ASTNodeType.IDENTIFIER && home[rator]==NodeTable.NONE && isBuiltIn(nodes.getValue(rator)))
+      return nodes.getValue(rator);
+    if(nodes.getType(rator)==ASTNodeType.GAMMA){
+      int innerRator = nodes.getChild(rator);
+      if(nodes.getType(innerRator)==ASTNodeType.IDENTIFIER && home[innerRator]==NodeTable.NONE){
+        String name = nodes.getValue(innerRator);
+        if(name.equals("Conc") || name.equals("conc"))
+          return "Conc call"; //the second half
+      }
+    }
+    return "";
+  }
+
+  private boolean isBuiltIn(String name){
+    return CSEMachine.isReservedIdentifier(name);
+  }
+
+  /**
+   * @return true if nodes of this type can be part of a pure expression
+   */
+  private boolean isExpression(ASTNodeType type){
+    switch(type){
+      case INTEGER:
+      case STRING:
+      case TRUE:
+      case FALSE:
+      case DUMMY:
+      case NIL:
+      case TAU:
+      case AUG:
+      case CONDITIONAL:
+      case OR:
+      case AND:
+      case NOT:
+      case GR:
+      case GE:
+      case LS:
+      case LE:
+      case EQ:
+      case NE:
+      case PLUS:
+      case MINUS:
+      case NEG:
+      case MULT:
+      case DIV:
+      case EXP:
+      case GAMMA:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private int lambdaBody(int lambda){
+    return nodes.getSibling(nodes.getChild(lambda));
+  }
+
+  private void bindVariables(int lambda){
+    for(int variable: variablesOf(lambda)){
+      String name = nodes.getValue(variable);
+      if(name==null) //e.g., fn () . E
+        continue;
+      names.add(name);
+      ArrayDeque<Integer> bindings = scope.get(name);
+      if(bindings==null){
+        bindings = new ArrayDeque<Integer>();
+        scope.put(name, bindings);
+      }
+      bindings.push(bindingLambdas.size());
+      bindingLambdas.add(lambda);
+    }
+  }
+
+  private void unbindVariables(int lambda){
+    for(int variable: variablesOf(lambda)){
+      if(nodes.getValue(variable)!=null)
+        scope.get(nodes.getValue(variable)).pop();
+    }
+  }
+
+  /**
+   * @return the variable nodes of a lambda (a single one, or the children of its comma)
+   */
+  private List<Integer> variablesOf(int lambda){
+    List<Integer> variables = new ArrayList<Integer>();
+    int variable = nodes.getChild(lambda);
+    if(nodes.getType(variable)==ASTNodeType.COMMA){
+      for(int child = nodes.getChild(variable); child!=NodeTable.NONE; child = nodes.getSibling(child))
+        variables.add(child);
+    }
+    else
+      variables.add(variable);
+    return variables;
+  }
+
+  /**
+   * Binds each candidate that is repeated, largest first. A candidate inside an occurrence of one that was bound
+   * is left for the next round.
+   * @return the number of candidates bound
+   */
+  private int bindRepeated(){
+    Map<Integer, List<Integer>> occurrences = new LinkedHashMap<Integer, List<Integer>>();
+    for(int candidate: candidates){
+      if(callsFunction.get(candidate) && !functionsPure)
+        continue;
+      List<Integer> sameExpression = occurrences.get(valueNumber[candidate]);
+      if(sameExpression==null){
+        sameExpression = new ArrayList<Integer>();
+        occurrences.put(valueNumber[candidate], sameExpression);
+      }
+      sameExpression.add(candidate);
+    }
+    List<List<Integer>> repeated = new ArrayList<List<Integer>>();
+    for(List<Integer> sameExpression: occurrences.values()){
+      if(sameExpression.size()>1)
+        repeated.add(sameExpression);
+    }
+    Collections.sort(repeated, new Comparator<List<Integer>>(){
+      @Override
+      public int compare(List<Integer> a, List<Integer> b){
+        return size[b.get(0)]-size[a.get(0)];
+      }
+    });
+
+    BitSet removed = new BitSet(nodes.size()); //nodes moved or replaced in this round
+    int numBound = 0;
+    for(List<Integer> sameExpression: repeated){
+      List<Integer> remaining = new ArrayList<Integer>();
+      for(int occurrence: sameExpression){
+        if(!removed.get(occurrence))
+          remaining.add(occurrence);
+      }
+      if(remaining.size()<2)
+        continue;
+      int target = target(remaining);
+      if(target!=NodeTable.NONE){
+        bind(target, remaining, removed);
+        numBound++;
+      }
+    }
+    return numBound;
+  }
+
+  /**
+   * @return the node to wrap the let binding the occurrences of an expression around, or NONE if they should be
+   *         left alone
+   */
+  private int target(List<Integer> occurrences){
+    int commonRegion = region[occurrences.get(0)];
+    for(int occurrence: occurrences)
+      commonRegion = commonRegion(commonRegion, region[occurrence]);
+    int homeBody = lambdaBody(home[occurrences.get(0)]);
+    int target = depth[homeBody]>depth[commonRegion]? homeBody : commonRegion;
+
+    boolean evaluated = false; //whenever the target is
+    for(int occurrence: occurrences)
+      evaluated = evaluated || region[occurrence]==region[target];
+    if(!evaluated || callsPrint(target))
+      return NodeTable.NONE;
+    return target;
+  }
+
+  private int commonRegion(int a, int b){
+    while(a!=b){
+      if(depth[a]>=depth[b])
+        a = region[parent[a]];
+      else
+        b = region[parent[b]];
+    }
+    return a;
+  }
+
+  private boolean callsPrint(int root){
+    int[] pending = new int[16];
+    int pendingTop = 0;
+    pending[pendingTop++] = root;
+    while(pendingTop>0){
+      int node = pending[--pendingTop];
+      if(nodes.getType(node)==ASTNodeType.IDENTIFIER){
+        String name = nodes.getValue(node);
+        if(name.equals("Print") || name.equals("print"))
+          return true;
+      }
+      for(int child = nodes.getChild(node); child!=NodeTable.NONE; child = nodes.getSibling(child)){
+        if(pendingTop==pending.length)
+          pending = Arrays.copyOf(pending, pendingTop*2);
+        pending[pendingTop++] = child;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Turns target into a let that binds a new variable to the expression and replaces its occurrences with the
+   * variable.
+   */
+  private void bind(int target, List<Integer> occurrences, BitSet removed){
+    String name;
+    do{
+      name = "c'"+(++freshNames);
+    }while(names.contains(name));
+    names.add(name);
+
+    int expression = moveContents(occurrences.get(0));
+    for(int occurrence: occurrences){
+      markRemoved(occurrence, removed);
+      nodes.setType(occurrence, ASTNodeType.IDENTIFIER);
+      nodes.setValue(occurrence, name);
+      nodes.setChild(occurrence, NodeTable.NONE);
+      nodes.setFoldedConstant(occurrence, false);
+    }
+
+    int body = moveContents(target);
+    int lambda = nodes.newNode(ASTNodeType.LAMBDA, null, nodes.getSourceLineNumber(target));
+    int variable = nodes.newNode(ASTNodeType.IDENTIFIER, name, nodes.getSourceLineNumber(target));
+    nodes.setChild(lambda, variable);
+    nodes.setSibling(variable, body);
+    nodes.setSibling(lambda, expression);
+    nodes.setType(target, ASTNodeType.GAMMA);
+    nodes.setValueIndex(target, NodeTable.NONE);
+    nodes.setChild(target, lambda);
+    nodes.setFoldedConstant(target, false);
+    removed.set(target);
+  }
+
+  /**
+   * @return a new node with the contents (but not the sibling) of node
+   */
+  private int moveContents(int node){
+    int copy = nodes.newNode(nodes.getType(node), null, nodes.getSourceLineNumber(node));
+    nodes.setValueIndex(copy, nodes.getValueIndex(node));
+    nodes.setChild(copy, nodes.getChild(node));
+    nodes.setFoldedConstant(copy, nodes.isFoldedConstant(node));
+    return copy;
+  }
+
+  private void markRemoved(int root, BitSet removed){
+    int[] pending = new int[16];
+    int pendingTop = 0;
+    pending[pendingTop++] = root;
+    while(pendingTop>0){
+      int node = pending[--pendingTop];
+      removed.set(node);
+      for(int child = nodes.getChild(node); child!=NodeTable.NONE; child = nodes.getSibling(child)){
+        if(pendingTop==pending.length)
+          pending = Arrays.copyOf(pending, pendingTop*2);
+        pending[pendingTop++] = child;
+      }
+    }
+  }
+}
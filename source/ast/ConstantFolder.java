@@ -0,0 +1,472 @@
+package ast;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Constant folding and propagation over a standardized tree in a {@link NodeTable}. Run it after
+ * standardization and before the delta bodies are built (and before {@link HashConser}, since it
+ * rewrites nodes in place).
+ *
+ * <ul>
+ * <li>Operators (arithmetic, comparisons, {@code or}, {@code &}, {@code not}, {@code neg}) whose operands
+ * are literals become the literal they evaluate to.
+ * <li>Applications of the built-ins Order, Null, Conc and the Is* predicates to literals (or to tuples of
+ * literals) are folded the same way. Print, ItoS, Stem and Stern are left alone.
+ * <li>A let (after standardization, a gamma whose rator is a lambda) that binds literals has every use of
+ * its variables replaced by the literal and then disappears altogether.
+ * <li>A conditional whose condition is a literal truth value becomes the branch it would take.
+ * </ul>
+ *
+ * <p>Anything that would fail at run time (division by zero, a type mismatch, an integer the CSE machine
+ * cannot parse) is left as is, so it still fails at run time, with the same message and line number.
+ * Folded literals are marked (see {@link NodeTable#setFoldedConstant(int, boolean)}): the CSE machine
+ * gives each evaluation of one a new node, exactly as it would have for the expression it replaced.
+ * Literals from folded expressions have source line number 0, like the results the CSE machine computes;
+ * literals propagated to the uses of a variable keep the line number of the literal it was bound to.
+ */
+public class ConstantFolder{
+  //what to do with a pending node
+  private static final int VISIT = 0; //fold the subtree rooted at the node
+  private static final int BIND = 1; //the rand of a let is done: bind the variables of its lambda, then visit the body
+  private static final int UNBIND = 2; //the body of a lambda is done
+  private static final int EXIT = 3; //the children of the node are done: fold the node itself
+
+  private NodeTable nodes;
+  private Map<String, ArrayDeque<Integer>> scope; //for each name, the literal it is bound to (NONE if not a literal), innermost first
+  private BitSet lets; //gammas whose body was folded with the variables of their lambda bound (see BIND)
+  private int[] pendingActions;
+  private int[] pendingNodes;
+  private int top;
+
+  public ConstantFolder(NodeTable nodes){
+    this.nodes = nodes;
+  }
+
+  /**
+   * Folds the tree rooted at root in place. Uses an explicit stack, so the depth of the tree does not matter.
+   */
+  public void fold(int root){
+    scope = new HashMap<String, ArrayDeque<Integer>>();
+    lets = new BitSet();
+    pendingActions = new int[64];
+    pendingNodes = new int[64];
+    top = 0;
+    push(VISIT, root);
+    while(top>0){
+      top--;
+      int node = pendingNodes[top];
+      switch(pendingActions[top]){
+        case VISIT:
+          visit(node);
+          break;
+        case BIND:
+          int lambda = nodes.getChild(node);
+          bindVariables(lambda, letConstants(lambda, nodes.getSibling(lambda)));
+          push(UNBIND, lambda);
+          push(VISIT, lambdaBody(lambda));
+          break;
+        case UNBIND:
+          unbindVariables(node);
+          break;
+        case EXIT:
+          foldNode(node);
+          break;
+      }
+    }
+  }
+
+  private void push(int action, int node){
+    if(top==pendingNodes.length){
+      pendingActions = Arrays.copyOf(pendingActions, top*2);
+      pendingNodes = Arrays.copyOf(pendingNodes, top*2);
+    }
+    pendingActions[top] = action;
+    pendingNodes[top++] = node;
+  }
+
+  private void visit(int node){
+    switch(nodes.getType(node)){
+      case IDENTIFIER:
+        propagate(node);
+        return;
+      case LAMBDA:
+        bindVariables(node, null);
+        push(UNBIND, node);
+        push(VISIT, lambdaBody(node));
+        return;
+      case GAMMA:
+        int rator = nodes.getChild(node);
+        if(nodes.getType(rator)==ASTNodeType.LAMBDA){ //a let: its rand first, so the body knows what the variables are bound to
+          lets.set(node);
+          push(EXIT, node);
+          push(BIND, node);
+          push(VISIT, nodes.getSibling(rator));
+          return;
+        }
+        break;
+      default:
+        break;
+    }
+    push(EXIT, node);
+    for(int child = nodes.getChild(node); child!=NodeTable.NONE; child = nodes.getSibling(child))
+      push(VISIT, child);
+  }
+
+  private int lambdaBody(int lambda){
+    return nodes.getSibling(nodes.getChild(lambda));
+  }
+
+  /**
+   * @param constants the literal each variable is bound to; null if the variables are not bound to literals
+   */
+  private void bindVariables(int lambda, int[] constants){
+    int variables = nodes.getChild(lambda);
+    if(nodes.getType(variables)==ASTNodeType.COMMA){
+      int i = 0;
+      for(int variable = nodes.getChild(variables); variable!=NodeTable.NONE; variable = nodes.getSibling(variable))
+        bind(nodes.getValue(variable), constants==null? NodeTable.NONE : constants[i++]);
+    }
+    else
+      bind(nodes.getValue(variables), constants==null? NodeTable.NONE : constants[0]);
+  }
+
+  private void bind(String name, int constant){
+    if(name==null) //e.g., fn () . E
+      return;
+    ArrayDeque<Integer> bindings = scope.get(name);
+    if(bindings==null){
+      bindings = new ArrayDeque<Integer>();
+      scope.put(name, bindings);
+    }
+    bindings.push(constant);
+  }
+
+  private void unbindVariables(int lambda){
+    int variables = nodes.getChild(lambda);
+    if(nodes.getType(variables)==ASTNodeType.COMMA){
+      for(int variable = nodes.getChild(variables); variable!=NodeTable.NONE; variable = nodes.getSibling(variable))
+        unbind(nodes.getValue(variable));
+    }
+    else
+      unbind(nodes.getValue(variables));
+  }
+
+  private void unbind(String name){
+    if(name!=null)
+      scope.get(name).pop();
+  }
+
+  /**
+   * @return true if name is not bound by any lambda around the node being folded (i.e., it refers to a built-in)
+   */
+  private boolean isFree(String name){
+    ArrayDeque<Integer> bindings = scope.get(name);
+    return bindings==null || bindings.isEmpty();
+  }
+
+  /**
+   * Replaces an identifier bound to a literal with (a copy of) that literal.
+   */
+  private void propagate(int identifier){
+    ArrayDeque<Integer> bindings = scope.get(nodes.getValue(identifier));
+    if(bindings==null || bindings.isEmpty() || bindings.peek()==NodeTable.NONE)
+      return;
+    int constant = bindings.peek();
+    nodes.setType(identifier, nodes.getType(constant));
+    nodes.setValueIndex(identifier, nodes.getValueIndex(constant));
+    nodes.setSourceLineNumber(identifier, nodes.getSourceLineNumber(constant));
+    nodes.setFoldedConstant(identifier, nodes.getType(constant)!=ASTNodeType.NIL); //nil makes a new tuple anyway
+  }
+
+  /**
+   * @return the literals the variables of lambda are bound to when it is applied to rand; null unless
+   *         every variable is bound to a literal
+   */
+  private int[] letConstants(int lambda, int rand){
+    int variables = nodes.getChild(lambda);
+    if(nodes.getType(variables)==ASTNodeType.IDENTIFIER)
+      return isConstant(rand)? new int[]{rand} : null;
+    if(nodes.getType(variables)!=ASTNodeType.COMMA || nodes.getType(rand)!=ASTNodeType.TAU)
+      return null;
+
+    int numVariables = 0;
+    for(int variable = nodes.getChild(variables); variable!=NodeTable.NONE; variable = nodes.getSibling(variable))
+      numVariables++;
+    int[] constants = new int[numVariables];
+    int i = 0;
+    for(int element = nodes.getChild(rand); element!=NodeTable.NONE; element = nodes.getSibling(element)){
+      if(i==numVariables || !isConstant(element))
+        return null;
+      constants[i++] = element;
+    }
+    return i==numVariables? constants : null;
+  }
+
+  /**
+   * @return true if node is a literal: evaluating it has no effect other than pushing a value
+   */
+  private boolean isConstant(int node){
+    switch(nodes.getType(node)){
+      case INTEGER:
+      case STRING:
+      case TRUE:
+      case FALSE:
+      case DUMMY:
+      case NIL:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private boolean isTruthValue(int node){
+    return nodes.getType(node)==ASTNodeType.TRUE || nodes.getType(node)==ASTNodeType.FALSE;
+  }
+
+  /**
+   * @return the type of the value a literal, or a tuple of literals, evaluates to; null if node is neither
+   */
+  private ASTNodeType valueType(int node){
+    if(tupleSize(node)!=-1)
+      return ASTNodeType.TUPLE;
+    if(isConstant(node))
+      return nodes.getType(node);
+    return null;
+  }
+
+  /**
+   * @return the number of elements of the tuple node evaluates to, if it is nil or a tau of literals; -1 otherwise
+   */
+  private int tupleSize(int node){
+    if(nodes.getType(node)==ASTNodeType.NIL)
+      return 0;
+    if(nodes.getType(node)!=ASTNodeType.TAU)
+      return -1;
+    int size = 0;
+    for(int element = nodes.getChild(node); element!=NodeTable.NONE; element = nodes.getSibling(element)){
+      if(!isConstant(element))
+        return -1;
+      size++;
+    }
+    return size;
+  }
+
+  private void foldNode(int node){
+    ASTNodeType type = nodes.getType(node);
+    switch(type){
+      case PLUS:
+      case MINUS:
+      case MULT:
+      case DIV:
+      case EXP:
+      case LS:
+      case LE:
+      case GR:
+      case GE:
+        foldArithmetic(node, type);
+        break;
+      case EQ:
+      case NE:
+        foldEquality(node, type);
+        break;
+      case OR:
+      case AND:
+        int rand1 = nodes.getChild(node), rand2 = nodes.getSibling(rand1);
+        if(isTruthValue(rand1) && isTruthValue(rand2)){
+          if(type==ASTNodeType.OR)
+            setTruthValue(node, nodes.getType(rand1)==ASTNodeType.TRUE || nodes.getType(rand2)==ASTNodeType.TRUE);
+          else
+            setTruthValue(node, nodes.getType(rand1)==ASTNodeType.TRUE && nodes.getType(rand2)==ASTNodeType.TRUE);
+        }
+        break;
+      case NOT:
+        if(isTruthValue(nodes.getChild(node)))
+          setTruthValue(node, nodes.getType(nodes.getChild(node))==ASTNodeType.FALSE);
+        break;
+      case NEG:
+        if(nodes.getType(nodes.getChild(node))==ASTNodeType.INTEGER){
+          Integer operand = parseInteger(nodes.getChild(node));
+          if(operand!=null)
+            setConstant(node, ASTNodeType.INTEGER, Integer.toString(-1*operand));
+        }
+        break;
+      case CONDITIONAL:
+        int condition = nodes.getChild(node);
+        if(isTruthValue(condition)){
+          int thenNode = nodes.getSibling(condition);
+          replace(node, nodes.getType(condition)==ASTNodeType.TRUE? thenNode : nodes.getSibling(thenNode));
+        }
+        break;
+      case GAMMA:
+        int rator = nodes.getChild(node);
+        if(nodes.getType(rator)==ASTNodeType.LAMBDA){
+          //unless the rator only became a lambda when it was folded, every use of its variables is gone
+          if(lets.get(node) && letConstants(rator, nodes.getSibling(rator))!=null)
+            replace(node, lambdaBody(rator));
+        }
+        else
+          foldApplication(node, rator, nodes.getSibling(rator));
+        break;
+      default:
+        break;
+    }
+  }
+
+  private void foldArithmetic(int node, ASTNodeType type){
+    int rand1 = nodes.getChild(node), rand2 = nodes.getSibling(rand1);
+    if(nodes.getType(rand1)!=ASTNodeType.INTEGER || nodes.getType(rand2)!=ASTNodeType.INTEGER)
+      return;
+    Integer operand1 = parseInteger(rand1), operand2 = parseInteger(rand2);
+    if(operand1==null || operand2==null)
+      return;
+    int x = operand1, y = operand2;
+
+    switch(type){
+      case PLUS:
+        setConstant(node, ASTNodeType.INTEGER, Integer.toString(x+y));
+        break;
+      case MINUS:
+        setConstant(node, ASTNodeType.INTEGER, Integer.toString(x-y));
+        break;
+      case MULT:
+        setConstant(node, ASTNodeType.INTEGER, Integer.toString(x*y));
+        break;
+      case DIV:
+        if(y!=0) //left for the CSE machine to fail on
+          setConstant(node, ASTNodeType.INTEGER, Integer.toString(x/y));
+        break;
+      case EXP:
+        setConstant(node, ASTNodeType.INTEGER, Integer.toString((int)Math.pow(x, y)));
+        break;
+      case LS:
+        setTruthValue(node, x<y);
+        break;
+      case LE:
+        setTruthValue(node, x<=y);
+        break;
+      case GR:
+        setTruthValue(node, x>y);
+        break;
+      case GE:
+        setTruthValue(node, x>=y);
+        break;
+      default:
+        break;
+    }
+  }
+
+  private void foldEquality(int node, ASTNodeType type){
+    int rand1 = nodes.getChild(node), rand2 = nodes.getSibling(rand1);
+    boolean equal;
+    if(isTruthValue(rand1)){
+      if(!isTruthValue(rand2))
+        return;
+      equal = nodes.getType(rand1)==nodes.getType(rand2);
+    }
+    else if(nodes.getType(rand1)!=nodes.getType(rand2))
+      return;
+    else if(nodes.getType(rand1)==ASTNodeType.STRING)
+      equal = nodes.getValue(rand1).equals(nodes.getValue(rand2));
+    else if(nodes.getType(rand1)==ASTNodeType.INTEGER){
+      Integer operand1 = parseInteger(rand1), operand2 = parseInteger(rand2);
+      if(operand1==null || operand2==null)
+        return;
+      equal = operand1.intValue()==operand2.intValue();
+    }
+    else
+      return;
+    setTruthValue(node, type==ASTNodeType.EQ? equal : !equal);
+  }
+
+  private void foldApplication(int node, int rator, int rand){
+    if(nodes.getType(rator)==ASTNodeType.GAMMA){ //Conc takes its two arguments one at a time
+      int concRator = nodes.getChild(rator), rand1 = nodes.getSibling(concRator);
+      if(nodes.getType(concRator)==ASTNodeType.IDENTIFIER && isConc(nodes.getValue(concRator)) &&
+          isFree(nodes.getValue(concRator)) &&
+          nodes.getType(rand1)==ASTNodeType.STRING && nodes.getType(rand)==ASTNodeType.STRING)
+        setConstant(node, ASTNodeType.STRING, nodes.getValue(rand1)+nodes.getValue(rand));
+      return;
+    }
+    if(nodes.getType(rator)!=ASTNodeType.IDENTIFIER || !isFree(nodes.getValue(rator)))
+      return;
+
+    ASTNodeType randType = valueType(rand);
+    if(randType==null)
+      return;
+    switch(nodes.getValue(rator)){
+      case "Isinteger":
+        setTruthValue(node, randType==ASTNodeType.INTEGER);
+        break;
+      case "Isstring":
+        setTruthValue(node, randType==ASTNodeType.STRING);
+        break;
+      case "Isdummy":
+        setTruthValue(node, randType==ASTNodeType.DUMMY);
+        break;
+      case "Isfunction":
+        setTruthValue(node, false);
+        break;
+      case "Istuple":
+        setTruthValue(node, randType==ASTNodeType.TUPLE);
+        break;
+      case "Istruthvalue":
+        setTruthValue(node, randType==ASTNodeType.TRUE || randType==ASTNodeType.FALSE);
+        break;
+      case "Order":
+        if(randType==ASTNodeType.TUPLE)
+          setConstant(node, ASTNodeType.INTEGER, Integer.toString(tupleSize(rand)));
+        break;
+      case "Null":
+        if(randType==ASTNodeType.TUPLE)
+          setTruthValue(node, tupleSize(rand)==0);
+        break;
+      default:
+        break;
+    }
+  }
+
+  private boolean isConc(String name){
+    return name.equals("Conc") || name.equals("conc");
+  }
+
+  /**
+   * @return the value of an integer literal, as the CSE machine would parse it; null if it cannot
+   */
+  private Integer parseInteger(int node){
+    try{
+      return Integer.parseInt(nodes.getValue(node));
+    }catch(NumberFormatException e){
+      return null;
+    }
+  }
+
+  private void setTruthValue(int node, boolean value){
+    if(value)
+      setConstant(node, ASTNodeType.TRUE, "true");
+    else
+      setConstant(node, ASTNodeType.FALSE, "false");
+  }
+
+  private void setConstant(int node, ASTNodeType type, String value){
+    nodes.setType(node, type);
+    nodes.setValue(node, value);
+    nodes.setSourceLineNumber(node, 0);
+    nodes.setChild(node, NodeTable.NONE);
+    nodes.setFoldedConstant(node, true);
+  }
+
+  /**
+   * Makes node a copy of replacement (its sibling stays as is).
+   */
+  private void replace(int node, int replacement){
+    nodes.setType(node, nodes.getType(replacement));
+    nodes.setValueIndex(node, nodes.getValueIndex(replacement));
+    nodes.setSourceLineNumber(node, nodes.getSourceLineNumber(replacement));
+    nodes.setChild(node, nodes.getChild(replacement));
+    nodes.setFoldedConstant(node, nodes.isFoldedConstant(replacement));
+  }
+}
@@ -0,0 +1,310 @@
+package ast;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import csem.CSEMachine;
+
+/**
+ * Removes unused bindings from a standardized tree in a {@link NodeTable}. Run it after standardization
+ * and before the delta bodies are built (and before {@link HashConser}, since it rewrites nodes in place).
+ *
+ * <p>After standardization, every let, where, within and and (rec or not) is a gamma whose rator is a lambda.
+ * A variable of such a lambda that is not used in its body is removed, along with the expression bound to it,
+ * provided evaluating that expression cannot have any effect: it must be a value that is already there
+ * (a lambda, a rec definition, a literal, a variable that is bound, a built-in, or a tau of those). Evaluating
+ * anything else may reach a Print, or fail, so it stays. Removing a binding can leave other bindings (say, the
+ * helpers of a removed function) unused in turn, and those go too.
+ */
+public class DeadBindingEliminator{
+  //what to do with a pending node
+  private static final int VISIT = 0; //look at the subtree rooted at the node
+  private static final int BIND = 1; //the rand of a let is done: bind the variables of its lambda, then visit the body
+  private static final int UNBIND = 2; //the body of a lambda is done
+  private static final int EXIT = 3; //the children of the node are done: remove what is unused from it
+
+  private NodeTable nodes;
+  private Map<String, ArrayDeque<Binding>> scope; //for each name, the bindings in scope, innermost first
+  private Binding[] resolved; //the binding each identifier visited refers to (null if a built-in or undeclared)
+  private Map<Integer, Binding[]> letBindings; //the bindings of each let (gamma) being visited, one per variable
+  private int[] pendingActions;
+  private int[] pendingNodes;
+  private int top;
+  private List<String> removed;
+
+  public DeadBindingEliminator(NodeTable nodes){
+    this.nodes = nodes;
+  }
+
+  private static class Binding{
+    int uses;
+  }
+
+  /**
+   * Removes the unused bindings in the tree rooted at root, in place. Uses an explicit stack, so the depth
+   * of the tree does not matter.
+   * @return a description of each binding removed, e.g. {@code "x" (line 3)}
+   */
+  public List<String> eliminate(int root){
+    scope = new HashMap<String, ArrayDeque<Binding>>();
+    resolved = new Binding[nodes.size()];
+    letBindings = new HashMap<Integer, Binding[]>();
+    pendingActions = new int[64];
+    pendingNodes = new int[64];
+    top = 0;
+    removed = new ArrayList<String>();
+    push(VISIT, root);
+    while(top>0){
+      top--;
+      int node = pendingNodes[top];
+      switch(pendingActions[top]){
+        case VISIT:
+          visit(node);
+          break;
+        case BIND:
+          int lambda = nodes.getChild(node);
+          letBindings.put(node, bindVariables(lambda));
+          push(UNBIND, lambda);
+          push(VISIT, lambdaBody(lambda));
+          break;
+        case UNBIND:
+          unbindVariables(node);
+          break;
+        case EXIT:
+          Binding[] bindings = letBindings.remove(node);
+          if(bindings!=null)
+            removeUnused(node, bindings);
+          break;
+      }
+    }
+    return removed;
+  }
+
+  private void push(int action, int node){
+    if(top==pendingNodes.length){
+      pendingActions = Arrays.copyOf(pendingActions, top*2);
+      pendingNodes = Arrays.copyOf(pendingNodes, top*2);
+    }
+    pendingActions[top] = action;
+    pendingNodes[top++] = node;
+  }
+
+  private void visit(int node){
+    switch(nodes.getType(node)){
+      case IDENTIFIER:
+        Binding binding = lookup(nodes.getValue(node));
+        if(binding!=null){
+          binding.uses++;
+          resolved[node] = binding;
+        }
+        return;
+      case LAMBDA:
+        bindVariables(node);
+        push(UNBIND, node);
+        push(VISIT, lambdaBody(node));
+        return;
+      case GAMMA:
+        int rator = nodes.getChild(node);
+        if(nodes.getType(rator)==ASTNodeType.LAMBDA){ //a let: its rand first, outside the scope of its variables
+          push(EXIT, node);
+          push(BIND, node);
+          push(VISIT, nodes.getSibling(rator));
+          return;
+        }
+        break;
+      default:
+        break;
+    }
+    for(int child = nodes.getChild(node); child!=NodeTable.NONE; child = nodes.getSibling(child))
+      push(VISIT, child);
+  }
+
+  private int lambdaBody(int lambda){
+    return nodes.getSibling(nodes.getChild(lambda));
+  }
+
+  /**
+   * @return the new bindings, one per variable
+   */
+  private Binding[] bindVariables(int lambda){
+    List<Integer> variables = variablesOf(lambda);
+    Binding[] bindings = new Binding[variables.size()];
+    for(int i = 0; i < bindings.length; i++){
+      bindings[i] = new Binding();
+      String name = nodes.getValue(variables.get(i));
+      if(name==null) //e.g., fn () . E
+        continue;
+      ArrayDeque<Binding> nameBindings = scope.get(name);
+      if(nameBindings==null){
+        nameBindings = new ArrayDeque<Binding>();
+        scope.put(name, nameBindings);
+      }
+      nameBindings.push(bindings[i]);
+    }
+    return bindings;
+  }
+
+  private void unbindVariables(int lambda){
+    for(int variable: variablesOf(lambda)){
+      if(nodes.getValue(variable)!=null)
+        scope.get(nodes.getValue(variable)).pop();
+    }
+  }
+
+  private Binding lookup(String name){
+    ArrayDeque<Binding> bindings = scope.get(name);
+    return bindings==null? null : bindings.peek();
+  }
+
+  /**
+   * @return the variable nodes of a lambda (a single one, or the children of its comma)
+   */
+  private List<Integer> variablesOf(int lambda){
+    List<Integer> variables = new ArrayList<Integer>();
+    int variable = nodes.getChild(lambda);
+    if(nodes.getType(variable)==ASTNodeType.COMMA){
+      for(int child = nodes.getChild(variable); child!=NodeTable.NONE; child = nodes.getSibling(child))
+        variables.add(child);
+    }
+    else
+      variables.add(variable);
+    return variables;
+  }
+
+  private void removeUnused(int gamma, Binding[] bindings){
+    int lambda = nodes.getChild(gamma);
+    int rand = nodes.getSibling(lambda);
+    List<Integer> variables = variablesOf(lambda);
+    if(nodes.getType(nodes.getChild(lambda))!=ASTNodeType.COMMA || nodes.getType(rand)!=ASTNodeType.TAU){
+      //the rand is bound as a whole, so it can only go as a whole
+      for(Binding binding: bindings){
+        if(binding.uses>0)
+          return;
+      }
+      if(!isValue(rand))
+        return;
+      for(int i = 0; i < variables.size(); i++)
+        report(variables.get(i), rand, i);
+      release(rand);
+      replace(gamma, lambdaBody(lambda));
+      return;
+    }
+
+    //simultaneous definitions: a comma of variables bound to the elements of a tau
+    List<Integer> elements = new ArrayList<Integer>();
+    for(int element = nodes.getChild(rand); element!=NodeTable.NONE; element = nodes.getSibling(element))
+      elements.add(element);
+    if(elements.size()!=variables.size())
+      return;
+    int commaNode = nodes.getChild(lambda);
+    int previous = NodeTable.NONE; //last variable (and element) kept
+    int numKept = 0;
+    for(int i = 0; i < variables.size(); i++){
+      if(bindings[i].uses==0 && isValue(elements.get(i))){
+        report(variables.get(i), elements.get(i), 0);
+        release(elements.get(i));
+        continue;
+      }
+      if(previous==NodeTable.NONE){
+        nodes.setChild(commaNode, variables.get(i));
+        nodes.setChild(rand, elements.get(i));
+      }
+      else{
+        nodes.setSibling(variables.get(previous), variables.get(i));
+        nodes.setSibling(elements.get(previous), elements.get(i));
+      }
+      previous = i;
+      numKept++;
+    }
+
+    if(numKept==0)
+      replace(gamma, lambdaBody(lambda));
+    else if(numKept==1){ //a single variable is bound to the rand as a whole, not to the element of a tuple
+      replace(commaNode, variables.get(previous));
+      replace(rand, elements.get(previous));
+    }
+    else if(numKept<variables.size()){
+      nodes.setSibling(variables.get(previous), NodeTable.NONE);
+      nodes.setSibling(elements.get(previous), NodeTable.NONE);
+    }
+  }
+
+  /**
+   * @return true if evaluating node has no effect other than pushing a value that is already there (and
+   *         hence cannot reach a Print, or fail)
+   */
+  private boolean isValue(int node){
+    switch(nodes.getType(node)){
+      case LAMBDA:
+      case INTEGER:
+      case STRING:
+      case TRUE:
+      case FALSE:
+      case DUMMY:
+      case NIL:
+      case YSTAR:
+        return true;
+      case IDENTIFIER:
+        return resolved[node]!=null || CSEMachine.isReservedIdentifier(nodes.getValue(node));
+      case GAMMA: //a rec definition: Y* applied to a lambda
+        int rator = nodes.getChild(node);
+        return nodes.getType(rator)==ASTNodeType.YSTAR && nodes.getType(nodes.getSibling(rator))==ASTNodeType.LAMBDA;
+      case TAU:
+        for(int element = nodes.getChild(node); element!=NodeTable.NONE; element = nodes.getSibling(element)){
+          if(!isValue(element))
+            return false;
+        }
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Takes back the uses made by the identifiers in the subtree rooted at node, which is being removed.
+   */
+  private void release(int node){
+    int[] pending = new int[16];
+    int pendingTop = 0;
+    pending[pendingTop++] = node;
+    while(pendingTop>0){
+      int next = pending[--pendingTop];
+      if(nodes.getType(next)==ASTNodeType.IDENTIFIER && resolved[next]!=null)
+        resolved[next].uses--;
+      for(int child = nodes.getChild(next); child!=NodeTable.NONE; child = nodes.getSibling(child)){
+        if(pendingTop==pending.length)
+          pending = Arrays.copyOf(pending, pendingTop*2);
+        pending[pendingTop++] = child;
+      }
+    }
+  }
+
+  /**
+   * Records the removal of a variable, the index-th of those bound to rand.
+   */
+  private void report(int variable, int rand, int index){
+    int line = nodes.getSourceLineNumber(variable);
+    if(line==0 && nodes.getType(rand)==ASTNodeType.GAMMA){
+      //the variable of a rec definition was made up by standardization; the one in the lambda under Y* was not
+      List<Integer> recVariables = variablesOf(nodes.getSibling(nodes.getChild(rand)));
+      if(index<recVariables.size())
+        line = nodes.getSourceLineNumber(recVariables.get(index));
+    }
+    removed.add("\""+nodes.getValue(variable)+"\" (line "+line+")");
+  }
+
+  /**
+   * Makes node a copy of replacement (its sibling stays as is).
+   */
+  private void replace(int node, int replacement){
+    nodes.setType(node, nodes.getType(replacement));
+    nodes.setValueIndex(node, nodes.getValueIndex(replacement));
+    nodes.setSourceLineNumber(node, nodes.getSourceLineNumber(replacement));
+    nodes.setChild(node, nodes.getChild(replacement));
+    nodes.setFoldedConstant(node, nodes.isFoldedConstant(replacement));
+  }
+}
@@ -0,0 +1,120 @@
+package ast;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Works out the free variables of each lambda in a standardized tree of {@link ASTNode}s: the names it uses
+ * that none of its own lambdas (itself included) binds. A closure only needs the bindings of those (see
+ * {@link csem.Delta#getFreeVars()}). Names of built-ins count too, as a program may bind them.
+ *
+ * <p>Only lambdas bind names in a standardized tree (lets and rec definitions are gammas of lambdas). A shared
+ * subtree (see {@link HashConser}) has the same free variables wherever it occurs, so a lambda is analyzed
+ * only once.
+ */
+class FreeVariableAnalyzer{
+  private Map<ASTNode, String[]> freeVars; //for each lambda analyzed
+  private List<ASTNode> lambdas; //the lambdas being analyzed, outermost first
+  private List<Set<String>> lambdaFreeVars; //the free variables found so far in each of them
+  private Map<String, ArrayDeque<Integer>> scope; //for each name, the indices in lambdas of those binding it, innermost first
+
+  /**
+   * Uses explicit stacks, so the depth of the tree does not matter.
+   * @return the free variables of each lambda in the tree rooted at root, in the order they are first used
+   */
+  Map<ASTNode, String[]> analyze(ASTNode root){
+    freeVars = new IdentityHashMap<ASTNode, String[]>();
+    lambdas = new ArrayList<ASTNode>();
+    lambdaFreeVars = new ArrayList<Set<String>>();
+    scope = new HashMap<String, ArrayDeque<Integer>>();
+
+    ArrayDeque<ASTNode> pendingNodes = new ArrayDeque<ASTNode>();
+    ArrayDeque<Boolean> pendingExits = new ArrayDeque<Boolean>(); //true: the lambda's body is done
+    pendingNodes.push(root);
+    pendingExits.push(false);
+    while(!pendingNodes.isEmpty()){
+      ASTNode node = pendingNodes.pop();
+      if(pendingExits.pop()){
+        exitLambda(node);
+        continue;
+      }
+      if(node.getType()==ASTNodeType.IDENTIFIER){
+        use(node.getValue());
+        continue;
+      }
+      if(node.getType()==ASTNodeType.LAMBDA){
+        String[] analyzed = freeVars.get(node);
+        if(analyzed!=null){ //shared, and analyzed where it occurs elsewhere
+          for(String name: analyzed)
+            use(name);
+          continue;
+        }
+        enterLambda(node);
+        pendingNodes.push(node);
+        pendingExits.push(true);
+        pendingNodes.push(node.getChild().getSibling());
+        pendingExits.push(false);
+        continue;
+      }
+      for(ASTNode childNode = node.getChild(); childNode!=null; childNode = childNode.getSibling()){
+        pendingNodes.push(childNode);
+        pendingExits.push(false);
+      }
+    }
+    return freeVars;
+  }
+
+  /**
+   * Makes name free in each lambda it is used in that does not bind it, innermost first. If it is free in one of
+   * them already, it is free in the ones around it too (up to the lambda binding it).
+   */
+  private void use(String name){
+    ArrayDeque<Integer> binders = scope.get(name);
+    int binder = binders==null || binders.isEmpty()? -1 : binders.peek();
+    for(int i = lambdas.size()-1; i > binder; i--){
+      if(!lambdaFreeVars.get(i).add(name))
+        break;
+    }
+  }
+
+  private void enterLambda(ASTNode lambda){
+    int index = lambdas.size();
+    lambdas.add(lambda);
+    lambdaFreeVars.add(new LinkedHashSet<String>());
+    for(String name: boundNames(lambda)){
+      ArrayDeque<Integer> binders = scope.get(name);
+      if(binders==null){
+        binders = new ArrayDeque<Integer>();
+        scope.put(name, binders);
+      }
+      binders.push(index);
+    }
+  }
+
+  private void exitLambda(ASTNode lambda){
+    for(String name: boundNames(lambda))
+      scope.get(name).pop();
+    int index = lambdas.size()-1;
+    lambdas.remove(index);
+    freeVars.put(lambda, lambdaFreeVars.remove(index).toArray(new String[0]));
+  }
+
+  private List<String> boundNames(ASTNode lambda){
+    List<String> names = new ArrayList<String>();
+    ASTNode variableNode = lambda.getChild();
+    if(variableNode.getType()!=ASTNodeType.COMMA){
+      if(variableNode.getValue()!=null)
+        names.add(variableNode.getValue());
+      return names;
+    }
+    for(ASTNode childNode = variableNode.getChild(); childNode!=null; childNode = childNode.getSibling())
+      names.add(childNode.getValue());
+    return names;
+  }
+}
@@ -0,0 +1,149 @@
+package ast;
+
+import java.util.Arrays;
+
+import csem.CSEMachine;
+
+/**
+ * Hash-consing for the nodes in a {@link NodeTable}: structurally identical subtrees are replaced by a
+ * single shared one, which turns the tree into a DAG. After this runs, two subtrees are structurally
+ * equal if and only if they have the same node id.
+ *
+ * <p>Since the tree is in first-child, next-sibling representation, a node is identified with the
+ * list of its following siblings: two nodes are shared if they have the same type, value, children
+ * and following siblings. Leaves must also come from the same source line, because the line numbers
+ * of leaves show up in evaluation errors.
+ *
+ * <p>The sharing carries over to the ASTNodes the delta bodies are built from, except for subtrees
+ * containing a leaf the CSE machine may push on to its value stack as is (a literal or a built-in
+ * identifier). The machine links such nodes together when it builds tuples, so every occurrence of
+ * them gets its own ASTNode (see {@link NodeTable#markUnshareable(int)}).
+ */
+public class HashConser{
+  private NodeTable nodes;
+  private int[] slots; //open-addressing hash set of canonical node ids (+1, so 0 means empty)
+  private int duplicatesRemoved;
+
+  public HashConser(NodeTable nodes){
+    this.nodes = nodes;
+  }
+
+  /**
+   * Shares all structurally identical subtrees of the tree rooted at root. The tree must not contain
+   * shared subtrees already (i.e., run this once).
+   * @return the (possibly different) id of the root
+   */
+  public int hashCons(int root){
+    int[] preorder = preorder(root);
+    int[] canonical = new int[nodes.size()];
+    boolean[] containsValueLeaf = new boolean[nodes.size()];
+    slots = new int[Integer.highestOneBit(Math.max(preorder.length, 8))*4];
+
+    //children and following siblings come after a node in preorder, so this visits them first
+    for(int i = preorder.length-1; i >= 0; i--){
+      int node = preorder[i];
+      int child = nodes.getChild(node);
+      int sibling = nodes.getSibling(node);
+      boolean containsLeaf = isValueLeaf(node);
+      if(child!=NodeTable.NONE){
+        nodes.setChild(node, canonical[child]);
+        containsLeaf |= containsValueLeaf[child];
+      }
+      if(sibling!=NodeTable.NONE){
+        nodes.setSibling(node, canonical[sibling]);
+        containsLeaf |= containsValueLeaf[sibling];
+      }
+      containsValueLeaf[node] = containsLeaf;
+
+      canonical[node] = findOrAdd(node);
+      if(canonical[node]!=node)
+        duplicatesRemoved++;
+      else if(containsLeaf)
+        nodes.markUnshareable(node);
+    }
+    return canonical[root];
+  }
+
+  /**
+   * @return number of nodes that turned out to be duplicates and are no longer part of the tree
+   */
+  public int getDuplicatesRemoved(){
+    return duplicatesRemoved;
+  }
+
+  private int[] preorder(int root){
+    int[] order = new int[64];
+    int count = 0;
+    int[] pending = new int[64];
+    int top = 0;
+    pending[top++] = root;
+    while(top>0){
+      int node = pending[--top];
+      if(count==order.length)
+        order = Arrays.copyOf(order, count*2);
+      order[count++] = node;
+      if(top+2>pending.length)
+        pending = Arrays.copyOf(pending, pending.length*2);
+      if(nodes.getSibling(node)!=NodeTable.NONE)
+        pending[top++] = nodes.getSibling(node);
+      if(nodes.getChild(node)!=NodeTable.NONE)
+        pending[top++] = nodes.getChild(node);
+    }
+    return Arrays.copyOf(order, count);
+  }
+
+  /**
+   * @return the canonical node structurally identical to node; node itself if there is none yet
+   */
+  private int findOrAdd(int node){
+    int mask = slots.length-1;
+    int slot = hash(node) & mask;
+    while(slots[slot]!=0){
+      int candidate = slots[slot]-1;
+      if(sameNode(candidate, node))
+        return candidate;
+      slot = (slot+1) & mask;
+    }
+    slots[slot] = node+1;
+    return node;
+  }
+
+  private int hash(int node){
+    int h = nodes.getType(node).ordinal();
+    h = 31*h+nodes.getValueIndex(node);
+    h = 31*h+nodes.getChild(node);
+    h = 31*h+nodes.getSibling(node);
+    if(nodes.getChild(node)==NodeTable.NONE)
+      h = 31*h+nodes.getSourceLineNumber(node);
+    return h ^ (h>>>16);
+  }
+
+  private boolean sameNode(int a, int b){
+    return nodes.getType(a)==nodes.getType(b) &&
+        nodes.getValueIndex(a)==nodes.getValueIndex(b) &&
+        nodes.getChild(a)==nodes.getChild(b) &&
+        nodes.getSibling(a)==nodes.getSibling(b) &&
+        nodes.isFoldedConstant(a)==nodes.isFoldedConstant(b) &&
+        nodes.isProvenOperation(a)==nodes.isProvenOperation(b) &&
+        (nodes.getChild(a)!=NodeTable.NONE || nodes.getSourceLineNumber(a)==nodes.getSourceLineNumber(b));
+  }
+
+  /**
+   * @return true if the CSE machine may push this very node on to its value stack
+   */
+  private boolean isValueLeaf(int node){
+    switch(nodes.getType(node)){
+      case INTEGER:
+      case STRING:
+      case TRUE:
+      case FALSE:
+      case DUMMY:
+      case YSTAR:
+        return true;
+      case IDENTIFIER:
+        return CSEMachine.isReservedIdentifier(nodes.getValue(node));
+      default:
+        return false;
+    }
+  }
+}
@@ -0,0 +1,520 @@
+package ast;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Inlines small let-bound functions at their call sites in a standardized tree in a {@link NodeTable}
+ * and beta-reduces the result. Run it after standardization and before the delta bodies are built (and
+ * before {@link HashConser}, since it rewrites nodes in place).
+ *
+ * <p>A function is inlined if it is bound by a let (a gamma whose rator is a lambda and whose rand is a
+ * lambda; a rec definition never is), it is at most {@link #INLINE_BUDGET} nodes, and it is a chain of
+ * lambdas (its curried parameters) around a body that contains no further lambdas or Y*. It is inlined
+ * into calls that supply all of its parameters, each a literal or a bound variable (or a tau of those,
+ * for a parameter list), where its free variables refer to the same bindings as where it is defined.
+ * The call is replaced with the body of the function, the arguments substituted for the parameters
+ * (inner parameters that would capture an argument are renamed first), so it needs neither a closure nor
+ * an environment. Other calls are left alone: they would still need both, and every lookup of the
+ * function they are in would have a bigger body to copy. The let itself goes away once no use of the
+ * function is left.
+ *
+ * <p>Looking a function up in an environment gives each call a copy of its body, so each call sees the
+ * literals in it as they were written, whatever ItoS, Stem or Stern did to them before. The literals in
+ * an inlined copy are therefore marked as folded constants (see {@link NodeTable#setFoldedConstant(int,
+ * boolean)}), which the CSE machine evaluates to a new node every time.
+ */
+public class Inliner{
+  public static final int INLINE_BUDGET = 48; //maximum size (in nodes) of a function that is inlined
+
+  //what to do with a pending node
+  private static final int VISIT = 0; //inline in the subtree rooted at the node
+  private static final int BIND = 1; //the rand of a let is done: bind the variables of its lambda, then visit the body
+  private static final int UNBIND = 2; //the body of a lambda is done
+  private static final int EXIT = 3; //the children of the node are done: inline in the node itself
+
+  private NodeTable nodes;
+  private Map<String, ArrayDeque<Binding>> scope; //for each name, the bindings in scope, innermost first
+  private Map<Integer, Binding> letBindings; //the binding each let (gamma) being visited makes
+  private int[] pendingActions;
+  private int[] pendingNodes;
+  private int top;
+  private int freshNames;
+
+  public Inliner(NodeTable nodes){
+    this.nodes = nodes;
+  }
+
+  private static class Binding{
+    int function = NodeTable.NONE; //the lambda bound, if it is to be inlined
+    String[] freeNames; //the free variables of the function
+    Binding[] freeBindings; //what they refer to where the function is defined (null if unbound)
+    int numParameters; //number of lambdas in its chain
+    int remainingUses; //uses not (yet) inlined
+  }
+
+  /**
+   * Inlines in the tree rooted at root, in place. Uses an explicit stack, so the depth of the tree does not matter.
+   */
+  public void inline(int root){
+    scope = new HashMap<String, ArrayDeque<Binding>>();
+    letBindings = new HashMap<Integer, Binding>();
+    pendingActions = new int[64];
+    pendingNodes = new int[64];
+    top = 0;
+    push(VISIT, root);
+    while(top>0){
+      top--;
+      int node = pendingNodes[top];
+      switch(pendingActions[top]){
+        case VISIT:
+          visit(node);
+          break;
+        case BIND:
+          int lambda = nodes.getChild(node);
+          Binding binding = new Binding();
+          int rand = nodes.getSibling(lambda);
+          if(nodes.getType(nodes.getChild(lambda))==ASTNodeType.IDENTIFIER && isInlinable(rand))
+            describeFunction(binding, rand);
+          letBindings.put(node, binding);
+          bindVariables(lambda, binding);
+          push(UNBIND, lambda);
+          push(VISIT, lambdaBody(lambda));
+          break;
+        case UNBIND:
+          unbindVariables(node);
+          break;
+        case EXIT:
+          exit(node);
+          break;
+      }
+    }
+  }
+
+  private void push(int action, int node){
+    if(top==pendingNodes.length){
+      pendingActions = Arrays.copyOf(pendingActions, top*2);
+      pendingNodes = Arrays.copyOf(pendingNodes, top*2);
+    }
+    pendingActions[top] = action;
+    pendingNodes[top++] = node;
+  }
+
+  private void visit(int node){
+    switch(nodes.getType(node)){
+      case IDENTIFIER:
+        Binding binding = lookup(nodes.getValue(node));
+        if(binding!=null)
+          binding.remainingUses++;
+        return;
+      case LAMBDA:
+        bindVariables(node, null);
+        push(UNBIND, node);
+        push(VISIT, lambdaBody(node));
+        return;
+      case GAMMA:
+        int rator = nodes.getChild(node);
+        if(nodes.getType(rator)==ASTNodeType.LAMBDA){ //a let: its rand first, so the body knows what is bound
+          push(EXIT, node);
+          push(BIND, node);
+          push(VISIT, nodes.getSibling(rator));
+          return;
+        }
+        break;
+      default:
+        break;
+    }
+    push(EXIT, node);
+    for(int child = nodes.getChild(node); child!=NodeTable.NONE; child = nodes.getSibling(child))
+      push(VISIT, child);
+  }
+
+  private void exit(int node){
+    if(nodes.getType(node)!=ASTNodeType.GAMMA)
+      return;
+    Binding letBinding = letBindings.remove(node);
+    if(letBinding!=null){
+      if(letBinding.function!=NodeTable.NONE && letBinding.remainingUses==0) //every use was inlined
+        replace(node, lambdaBody(nodes.getChild(node)));
+      return;
+    }
+
+    //a call f a1 ... an is n nested gammas, this one the outermost
+    int numArguments = 0;
+    int callee = node;
+    while(nodes.getType(callee)==ASTNodeType.GAMMA){
+      callee = nodes.getChild(callee);
+      numArguments++;
+    }
+    if(nodes.getType(callee)!=ASTNodeType.IDENTIFIER)
+      return;
+    Binding binding = lookup(nodes.getValue(callee));
+    if(binding==null || binding.function==NodeTable.NONE || binding.numParameters!=numArguments || !isVisibleHere(binding))
+      return;
+
+    int[] calls = new int[numArguments]; //innermost first
+    int call = node;
+    for(int i = numArguments-1; i >= 0; i--){
+      calls[i] = call;
+      call = nodes.getChild(call);
+    }
+    int lambda = binding.function;
+    for(int i = 0; i < numArguments; i++){
+      if(arguments(lambda, nodes.getSibling(nodes.getChild(calls[i])))==null)
+        return;
+      lambda = lambdaBody(lambda);
+    }
+
+    replace(callee, copy(binding.function));
+    binding.remainingUses--;
+    for(int i = 0; i < numArguments; i++)
+      betaReduce(calls[i]);
+  }
+
+  private int lambdaBody(int lambda){
+    return nodes.getSibling(nodes.getChild(lambda));
+  }
+
+  /**
+   * @param binding what the variables are bound to; null for a new binding of each
+   */
+  private void bindVariables(int lambda, Binding binding){
+    int variables = nodes.getChild(lambda);
+    if(nodes.getType(variables)==ASTNodeType.COMMA){
+      for(int variable = nodes.getChild(variables); variable!=NodeTable.NONE; variable = nodes.getSibling(variable))
+        bind(nodes.getValue(variable), binding==null? new Binding() : binding);
+    }
+    else
+      bind(nodes.getValue(variables), binding==null? new Binding() : binding);
+  }
+
+  private void bind(String name, Binding binding){
+    if(name==null) //e.g., fn () . E
+      return;
+    ArrayDeque<Binding> bindings = scope.get(name);
+    if(bindings==null){
+      bindings = new ArrayDeque<Binding>();
+      scope.put(name, bindings);
+    }
+    bindings.push(binding);
+  }
+
+  private void unbindVariables(int lambda){
+    int variables = nodes.getChild(lambda);
+    if(nodes.getType(variables)==ASTNodeType.COMMA){
+      for(int variable = nodes.getChild(variables); variable!=NodeTable.NONE; variable = nodes.getSibling(variable))
+        unbind(nodes.getValue(variable));
+    }
+    else
+      unbind(nodes.getValue(variables));
+  }
+
+  private void unbind(String name){
+    if(name!=null)
+      scope.get(name).pop();
+  }
+
+  /**
+   * @return the innermost binding of name; null if it is not bound (i.e., it refers to a built-in)
+   */
+  private Binding lookup(String name){
+    ArrayDeque<Binding> bindings = scope.get(name);
+    return bindings==null? null : bindings.peek();
+  }
+
+  /**
+   * @return true if the free variables of the function bound refer to the same bindings here as where it is defined
+   */
+  private boolean isVisibleHere(Binding binding){
+    for(int i = 0; i < binding.freeNames.length; i++){
+      if(lookup(binding.freeNames[i])!=binding.freeBindings[i])
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return true if lambda is a chain of lambdas around a body without lambdas, of at most INLINE_BUDGET nodes
+   */
+  private boolean isInlinable(int lambda){
+    if(nodes.getType(lambda)!=ASTNodeType.LAMBDA)
+      return false;
+    int body = lambda;
+    while(nodes.getType(body)==ASTNodeType.LAMBDA)
+      body = lambdaBody(body);
+
+    int size = 0;
+    int[] pending = new int[16];
+    int pendingTop = 0;
+    pending[pendingTop++] = lambda;
+    while(pendingTop>0){
+      int node = pending[--pendingTop];
+      if(++size>INLINE_BUDGET)
+        return false;
+      if(node==body)
+        body = NodeTable.NONE; //from here on, in the body
+      else if(body==NodeTable.NONE && (nodes.getType(node)==ASTNodeType.LAMBDA || nodes.getType(node)==ASTNodeType.YSTAR))
+        return false;
+      for(int child = nodes.getChild(node); child!=NodeTable.NONE; child = nodes.getSibling(child)){
+        if(pendingTop==pending.length)
+          pending = Arrays.copyOf(pending, pendingTop*2);
+        pending[pendingTop++] = child;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Records what the free variables of an inlinable function refer to.
+   */
+  private void describeFunction(Binding binding, int lambda){
+    Set<String> parameters = new HashSet<String>();
+    int body = lambda;
+    binding.numParameters = 0;
+    while(nodes.getType(body)==ASTNodeType.LAMBDA){
+      binding.numParameters++;
+      for(int variable: variablesOf(body))
+        parameters.add(nodes.getValue(variable));
+      body = lambdaBody(body);
+    }
+
+    List<String> freeNames = new ArrayList<String>();
+    int[] pending = new int[16];
+    int pendingTop = 0;
+    pending[pendingTop++] = body;
+    while(pendingTop>0){
+      int node = pending[--pendingTop];
+      if(nodes.getType(node)==ASTNodeType.IDENTIFIER){
+        String name = nodes.getValue(node);
+        if(!parameters.contains(name) && !freeNames.contains(name))
+          freeNames.add(name);
+      }
+      for(int child = nodes.getChild(node); child!=NodeTable.NONE; child = nodes.getSibling(child)){
+        if(pendingTop==pending.length)
+          pending = Arrays.copyOf(pending, pendingTop*2);
+        pending[pendingTop++] = child;
+      }
+    }
+
+    binding.function = lambda;
+    binding.freeNames = freeNames.toArray(new String[freeNames.size()]);
+    binding.freeBindings = new Binding[binding.freeNames.length];
+    for(int i = 0; i < binding.freeNames.length; i++)
+      binding.freeBindings[i] = lookup(binding.freeNames[i]);
+  }
+
+  /**
+   * @return the variable nodes of a lambda (a single one, or the children of its comma)
+   */
+  private List<Integer> variablesOf(int lambda){
+    List<Integer> variables = new ArrayList<Integer>();
+    int variable = nodes.getChild(lambda);
+    if(nodes.getType(variable)==ASTNodeType.COMMA){
+      for(int child = nodes.getChild(variable); child!=NodeTable.NONE; child = nodes.getSibling(child))
+        variables.add(child);
+    }
+    else
+      variables.add(variable);
+    return variables;
+  }
+
+  /**
+   * @return a copy of the subtree rooted at root (without its siblings), its literals marked as folded constants
+   */
+  private int copy(int root){
+    int rootCopy = copyNode(root);
+    //each pending entry is an original node whose children are yet to be copied, and its copy
+    int[] pendingOriginals = new int[16];
+    int[] pendingCopies = new int[16];
+    int pendingTop = 0;
+    pendingOriginals[pendingTop] = root;
+    pendingCopies[pendingTop++] = rootCopy;
+    while(pendingTop>0){
+      pendingTop--;
+      int original = pendingOriginals[pendingTop];
+      int copy = pendingCopies[pendingTop];
+      int previousChildCopy = NodeTable.NONE;
+      for(int child = nodes.getChild(original); child!=NodeTable.NONE; child = nodes.getSibling(child)){
+        int childCopy = copyNode(child);
+        if(previousChildCopy==NodeTable.NONE)
+          nodes.setChild(copy, childCopy);
+        else
+          nodes.setSibling(previousChildCopy, childCopy);
+        previousChildCopy = childCopy;
+        if(pendingTop==pendingOriginals.length){
+          pendingOriginals = Arrays.copyOf(pendingOriginals, pendingTop*2);
+          pendingCopies = Arrays.copyOf(pendingCopies, pendingTop*2);
+        }
+        pendingOriginals[pendingTop] = child;
+        pendingCopies[pendingTop++] = childCopy;
+      }
+    }
+    return rootCopy;
+  }
+
+  private int copyNode(int node){
+    ASTNodeType type = nodes.getType(node);
+    int copy = nodes.newNode(type, null, nodes.getSourceLineNumber(node));
+    nodes.setValueIndex(copy, nodes.getValueIndex(node));
+    nodes.setFoldedConstant(copy, isLiteral(type) || nodes.isFoldedConstant(node));
+    return copy;
+  }
+
+  private boolean isLiteral(ASTNodeType type){
+    switch(type){
+      case INTEGER:
+      case STRING:
+      case TRUE:
+      case FALSE:
+      case DUMMY:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * @return the arguments a lambda gets for its variables when applied to rand, if each of them is a literal or a
+   *         bound variable (a single one, or the elements of a tau of as many as there are variables); null otherwise
+   */
+  private List<Integer> arguments(int lambda, int rand){
+    List<Integer> arguments = new ArrayList<Integer>();
+    if(nodes.getType(nodes.getChild(lambda))==ASTNodeType.COMMA){
+      if(nodes.getType(rand)!=ASTNodeType.TAU)
+        return null;
+      for(int element = nodes.getChild(rand); element!=NodeTable.NONE; element = nodes.getSibling(element))
+        arguments.add(element);
+    }
+    else
+      arguments.add(rand);
+
+    List<Integer> variables = variablesOf(lambda);
+    if(arguments.size()!=variables.size())
+      return null;
+    for(int i = 0; i < variables.size(); i++){
+      if(nodes.getValue(variables.get(i))==null || !isSubstitutable(arguments.get(i)))
+        return null;
+    }
+    return arguments;
+  }
+
+  /**
+   * Replaces gamma, whose rator is a lambda and whose rand is made of arguments (see {@link #arguments(int, int)}),
+   * with the lambda's body, the arguments substituted for the variables.
+   */
+  private void betaReduce(int gamma){
+    int lambda = nodes.getChild(gamma);
+    List<Integer> variables = variablesOf(lambda);
+    List<Integer> arguments = arguments(lambda, nodes.getSibling(lambda));
+    Map<String, Integer> substitutions = new HashMap<String, Integer>();
+    Set<String> argumentNames = new HashSet<String>();
+    for(int i = 0; i < variables.size(); i++){
+      int argument = arguments.get(i);
+      substitutions.put(nodes.getValue(variables.get(i)), argument);
+      if(nodes.getType(argument)==ASTNodeType.IDENTIFIER)
+        argumentNames.add(nodes.getValue(argument));
+    }
+
+    int body = lambdaBody(lambda);
+    substitute(body, substitutions, argumentNames);
+    replace(gamma, body);
+  }
+
+  /**
+   * @return true if node is a literal, or a variable bound by an enclosing lambda (and hence in every environment the
+   *         node is evaluated in); evaluating either has no effect other than pushing a value
+   */
+  private boolean isSubstitutable(int node){
+    switch(nodes.getType(node)){
+      case INTEGER:
+      case STRING:
+      case TRUE:
+      case FALSE:
+      case DUMMY:
+      case NIL:
+        return true;
+      case IDENTIFIER:
+        return lookup(nodes.getValue(node))!=null;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Substitutes arguments for variables in the body of an inlined lambda: a chain of lambdas around a body
+   * without lambdas. A lambda in the chain that binds the name of an argument is renamed, so that it does not
+   * capture the argument.
+   */
+  private void substitute(int body, Map<String, Integer> substitutions, Set<String> argumentNames){
+    Map<String, String> renamings = new HashMap<String, String>();
+    int node = body;
+    while(nodes.getType(node)==ASTNodeType.LAMBDA){
+      for(int variable: variablesOf(node)){
+        String name = nodes.getValue(variable);
+        if(name==null)
+          continue;
+        substitutions.remove(name); //shadowed from here on
+        if(!substitutions.isEmpty() && argumentNames.contains(name)){
+          String freshName = name+"'"+(++freshNames); //cannot clash with any name in the program
+          nodes.setValue(variable, freshName);
+          renamings.put(name, freshName);
+        }
+        else
+          renamings.remove(name);
+      }
+      node = lambdaBody(node);
+    }
+    if(substitutions.isEmpty() && renamings.isEmpty())
+      return;
+
+    int[] pending = new int[16];
+    int pendingTop = 0;
+    pending[pendingTop++] = node;
+    while(pendingTop>0){
+      int next = pending[--pendingTop];
+      if(nodes.getType(next)==ASTNodeType.IDENTIFIER){
+        String name = nodes.getValue(next);
+        Integer argument = substitutions.get(name);
+        if(argument!=null)
+          substituteArgument(next, argument);
+        else if(renamings.containsKey(name))
+          nodes.setValue(next, renamings.get(name));
+      }
+      for(int child = nodes.getChild(next); child!=NodeTable.NONE; child = nodes.getSibling(child)){
+        if(pendingTop==pending.length)
+          pending = Arrays.copyOf(pending, pendingTop*2);
+        pending[pendingTop++] = child;
+      }
+    }
+  }
+
+  private void substituteArgument(int identifier, int argument){
+    ASTNodeType type = nodes.getType(argument);
+    if(type==ASTNodeType.IDENTIFIER){ //its line number only shows up if it is undeclared, which it is not
+      nodes.setValueIndex(identifier, nodes.getValueIndex(argument));
+      return;
+    }
+    //looking the variable up would have given a copy of the literal
+    nodes.setType(identifier, type);
+    nodes.setValueIndex(identifier, nodes.getValueIndex(argument));
+    nodes.setSourceLineNumber(identifier, nodes.getSourceLineNumber(argument));
+    nodes.setFoldedConstant(identifier, type!=ASTNodeType.NIL); //nil makes a new tuple anyway
+  }
+
+  /**
+   * Makes node a copy of replacement (its sibling stays as is).
+   */
+  private void replace(int node, int replacement){
+    nodes.setType(node, nodes.getType(replacement));
+    nodes.setValueIndex(node, nodes.getValueIndex(replacement));
+    nodes.setSourceLineNumber(node, nodes.getSourceLineNumber(replacement));
+    nodes.setChild(node, nodes.getChild(replacement));
+    nodes.setFoldedConstant(node, nodes.isFoldedConstant(replacement));
+  }
+}
@@ -0,0 +1,293 @@
+package ast;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import csem.FoldedConstant;
+import csem.ProvenOperation;
+
+/**
+ * Compact store for the nodes of an AST. Node ids are indices into parallel primitive arrays holding
+ * each node's type, first child, next sibling, source line number and value, so a node costs a
+ * couple of dozen bytes and no object header. Node values are interned: every distinct string
+ * is stored once and nodes refer to it by index.
+ *
+ * <p>The tree is in first-child, next-sibling representation, exactly like {@link ASTNode}. The CSE
+ * machine still works on ASTNodes; {@link #materialize(int)} creates them once the front end is done.
+ * Subtrees may be shared (see {@link HashConser}); the front end then works on a DAG.
+ */
+public class NodeTable{
+  public static final int NONE = -1; //"null" node id (or value index)
+  private static final ASTNodeType[] nodeTypes = ASTNodeType.values();
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private byte[] types;
+  private int[] children;
+  private int[] siblings;
+  private int[] sourceLineNumbers;
+  private int[] valueIndices;
+  private int size;
+
+  private List<String> values;
+  private Map<String, Integer> valueIndexMap;
+  private BitSet unshareable; //see markUnshareable()
+  private BitSet foldedConstants; //see setFoldedConstant()
+  private BitSet provenOperations; //see setProvenOperation()
+
+  public NodeTable(){
+    types = new byte[INITIAL_CAPACITY];
+    children = new int[INITIAL_CAPACITY];
+    siblings = new int[INITIAL_CAPACITY];
+    sourceLineNumbers = new int[INITIAL_CAPACITY];
+    valueIndices = new int[INITIAL_CAPACITY];
+    values = new ArrayList<String>();
+    valueIndexMap = new HashMap<String, Integer>();
+  }
+
+  /**
+   * Creates a node with no children and no sibling.
+   * @param value null if the node has no value
+   * @return id of the new node
+   */
+  public int newNode(ASTNodeType type, String value, int sourceLineNumber){
+    if(size==types.length)
+      grow();
+    int node = size++;
+    types[node] = (byte)type.ordinal();
+    children[node] = NONE;
+    siblings[node] = NONE;
+    sourceLineNumbers[node] = sourceLineNumber;
+    valueIndices[node] = internValue(value);
+    return node;
+  }
+
+  public int newNode(ASTNodeType type){
+    return newNode(type, null, 0);
+  }
+
+  /**
+   * Sets aside ids for count new nodes at once, so they can be filled in later (by several threads
+   * if need be) through {@link #initNode(int, ASTNodeType)}.
+   * @return id of the first of the reserved nodes; the others follow it
+   */
+  public int reserve(int count){
+    while(size+count>types.length)
+      grow();
+    int first = size;
+    size += count;
+    return first;
+  }
+
+  /**
+   * Fills in a reserved node the way {@link #newNode(ASTNodeType)} would have created it.
+   */
+  public void initNode(int node, ASTNodeType type){
+    types[node] = (byte)type.ordinal();
+    children[node] = NONE;
+    siblings[node] = NONE;
+    sourceLineNumbers[node] = 0;
+    valueIndices[node] = NONE;
+  }
+
+  private void grow(){
+    int capacity = types.length*2;
+    types = Arrays.copyOf(types, capacity);
+    children = Arrays.copyOf(children, capacity);
+    siblings = Arrays.copyOf(siblings, capacity);
+    sourceLineNumbers = Arrays.copyOf(sourceLineNumbers, capacity);
+    valueIndices = Arrays.copyOf(valueIndices, capacity);
+  }
+
+  private int internValue(String value){
+    if(value==null)
+      return NONE;
+    Integer index = valueIndexMap.get(value);
+    if(index==null){
+      index = values.size();
+      values.add(value);
+      valueIndexMap.put(value, index);
+    }
+    return index;
+  }
+
+  /**
+   * @return number of nodes ever created in this table (ids run from 0 to size()-1)
+   */
+  public int size(){
+    return size;
+  }
+
+  public ASTNodeType getType(int node){
+    return nodeTypes[types[node]];
+  }
+
+  public void setType(int node, ASTNodeType type){
+    types[node] = (byte)type.ordinal();
+  }
+
+  public int getChild(int node){
+    return children[node];
+  }
+
+  public void setChild(int node, int child){
+    children[node] = child;
+  }
+
+  public int getSibling(int node){
+    return siblings[node];
+  }
+
+  public void setSibling(int node, int sibling){
+    siblings[node] = sibling;
+  }
+
+  public String getValue(int node){
+    int valueIndex = valueIndices[node];
+    return valueIndex==NONE? null : values.get(valueIndex);
+  }
+
+  public int getValueIndex(int node){
+    return valueIndices[node];
+  }
+
+  public void setValueIndex(int node, int valueIndex){
+    valueIndices[node] = valueIndex;
+  }
+
+  public void setValue(int node, String value){
+    valueIndices[node] = internValue(value);
+  }
+
+  /**
+   * @return number of distinct values interned in this table (value indices run from 0 to valueCount()-1)
+   */
+  public int valueCount(){
+    return values.size();
+  }
+
+  public String valueAt(int valueIndex){
+    return values.get(valueIndex);
+  }
+
+  public int getSourceLineNumber(int node){
+    return sourceLineNumbers[node];
+  }
+
+  public void setSourceLineNumber(int node, int sourceLineNumber){
+    sourceLineNumbers[node] = sourceLineNumber;
+  }
+
+  /**
+   * Marks a node (shared by several parents, see {@link HashConser}) that must still get a
+   * separate ASTNode for each place it occurs in when materialized.
+   */
+  public void markUnshareable(int node){
+    if(unshareable==null)
+      unshareable = new BitSet();
+    unshareable.set(node);
+  }
+
+  /**
+   * Marks (or unmarks) a literal that stands for a folded expression (see {@link ConstantFolder}).
+   * It is materialized as a {@link FoldedConstant}.
+   */
+  public void setFoldedConstant(int node, boolean foldedConstant){
+    if(foldedConstants==null){
+      if(!foldedConstant)
+        return;
+      foldedConstants = new BitSet();
+    }
+    foldedConstants.set(node, foldedConstant);
+  }
+
+  public boolean isFoldedConstant(int node){
+    return foldedConstants!=null && foldedConstants.get(node);
+  }
+
+  /**
+   * Marks (or unmarks) an operator or conditional whose operands are proven to have the types it needs
+   * (see {@link TypeInferencer}). It is materialized as a {@link ProvenOperation}.
+   */
+  public void setProvenOperation(int node, boolean provenOperation){
+    if(provenOperations==null){
+      if(!provenOperation)
+        return;
+      provenOperations = new BitSet();
+    }
+    provenOperations.set(node, provenOperation);
+  }
+
+  public boolean isProvenOperation(int node){
+    return provenOperations!=null && provenOperations.get(node);
+  }
+
+  /**
+   * Creates the ASTNodes for the tree rooted at root, linked up exactly like the nodes in this table.
+   * A node that occurs in several places in the tree (after {@link HashConser} has run) becomes a
+   * single ASTNode, unless it was marked unshareable.
+   * @return the ASTNode for root
+   */
+  public ASTNode materialize(int root){
+    ASTNode[] sharedNodes = new ASTNode[size];
+    ASTNode rootNode = null;
+
+    //each pending entry is a node to materialize and the ASTNode it hangs off (as child or sibling)
+    int[] pendingNodes = new int[64];
+    ASTNode[] pendingOwners = new ASTNode[64];
+    boolean[] pendingAsChild = new boolean[64];
+    int top = 0;
+    pendingNodes[top++] = root;
+    while(top>0){
+      top--;
+      int node = pendingNodes[top];
+      ASTNode owner = pendingOwners[top];
+      boolean asChild = pendingAsChild[top];
+      pendingOwners[top] = null;
+      if(node==NONE)
+        continue;
+
+      boolean shareable = unshareable==null || !unshareable.get(node);
+      ASTNode astNode = shareable? sharedNodes[node] : null;
+      boolean isNew = astNode==null;
+      if(isNew){
+        if(isFoldedConstant(node))
+          astNode = new FoldedConstant();
+        else if(isProvenOperation(node))
+          astNode = new ProvenOperation();
+        else
+          astNode = new ASTNode();
+        astNode.setType(getType(node));
+        astNode.setValue(getValue(node));
+        astNode.setSourceLineNumber(sourceLineNumbers[node]);
+        if(shareable)
+          sharedNodes[node] = astNode;
+      }
+
+      if(owner==null)
+        rootNode = astNode;
+      else if(asChild)
+        owner.setChild(astNode);
+      else
+        owner.setSibling(astNode);
+
+      if(!isNew) //its descendants and siblings are already hooked up
+        continue;
+      if(top+2>pendingNodes.length){
+        pendingNodes = Arrays.copyOf(pendingNodes, pendingNodes.length*2);
+        pendingOwners = Arrays.copyOf(pendingOwners, pendingOwners.length*2);
+        pendingAsChild = Arrays.copyOf(pendingAsChild, pendingAsChild.length*2);
+      }
+      pendingNodes[top] = siblings[node];
+      pendingOwners[top] = astNode;
+      pendingAsChild[top++] = false;
+      pendingNodes[top] = children[node];
+      pendingOwners[top] = astNode;
+      pendingAsChild[top++] = true;
+    }
+    return rootNode;
+  }
+}
@@ -0,0 +1,339 @@
+package ast;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Rewrites an AST in a {@link NodeTable} into its standardized form, one node at a time.
+ *
+ * <p>Standardization is bottom up: a node is rewritten only after all of its children have been.
+ * That is exactly the order in which the parser reduces nodes, so the parser can also call
+ * {@link #standardizeNode(int)} as it builds each node and never build the unstandardized tree at all.
+ */
+public class Standardizer{
+  static final int PARALLEL_THRESHOLD = 1<<16; //trees smaller than this (in nodes) are standardized sequentially
+  private static final int GRAIN = 1<<12; //nodes standardized by one task, roughly
+
+  private NodeTable nodes;
+  private int nextReservedNode = NodeTable.NONE; //where the next new node goes, if reserved up front
+
+  public Standardizer(NodeTable nodes){
+    this.nodes = nodes;
+  }
+
+  /**
+   * Standardizes the tree rooted at node, bottom up. Uses an explicit stack, so the depth
+   * of the tree does not matter.
+   */
+  public void standardize(int node){
+    int[] order = topDownOrder(node);
+
+    //standardizing each node after all its children are standardized
+    for(int i = order.length-1; i >= 0; i--)
+      standardizeNode(order[i]);
+  }
+
+  /**
+   * Same as {@link #standardize(int)}, but if the tree has at least PARALLEL_THRESHOLD nodes, its
+   * small subtrees are standardized in parallel on the given pool. The nodes standardization adds
+   * are reserved up front, in the order {@link #standardize(int)} would have created them, so the
+   * resulting tree (node ids included) is exactly the same.
+   */
+  public void standardize(int node, ForkJoinPool pool){
+    int[] order = topDownOrder(node);
+    if(order.length<PARALLEL_THRESHOLD){
+      for(int i = order.length-1; i >= 0; i--)
+        standardizeNode(order[i]);
+      return;
+    }
+
+    //bottom up: subtree sizes, and where the nodes each node adds will go
+    int[] subtreeSizes = new int[nodes.size()];
+    int[] reservedNodes = new int[nodes.size()];
+    int newNodes = 0;
+    for(int i = order.length-1; i >= 0; i--){
+      int nextNode = order[i];
+      subtreeSizes[nextNode] = 1;
+      for(int childNode = nodes.getChild(nextNode); childNode!=NodeTable.NONE; childNode = nodes.getSibling(childNode))
+        subtreeSizes[nextNode] += subtreeSizes[childNode];
+      reservedNodes[nextNode] = newNodes;
+      newNodes += countNewNodes(nextNode);
+    }
+    int firstReservedNode = nodes.reserve(newNodes);
+    for(int i = 0; i < order.length; i++)
+      reservedNodes[order[i]] += firstReservedNode;
+
+    //every subtree of at most GRAIN nodes hanging off a bigger one is independent of all the others;
+    //a subtree occupies a contiguous range of order, starting with its root
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    int[] rangeStarts = new int[64];
+    int numRanges = 0, nodesInRanges = 0;
+    int[] children = new int[64];
+    for(int i = 0; i < order.length; i++){
+      int nextNode = order[i];
+      if(subtreeSizes[nextNode]<=GRAIN)
+        continue;
+      //the children of a node follow it in order, last child first
+      int numChildren = 0;
+      for(int childNode = nodes.getChild(nextNode); childNode!=NodeTable.NONE; childNode = nodes.getSibling(childNode)){
+        if(numChildren==children.length)
+          children = Arrays.copyOf(children, numChildren*2);
+        children[numChildren++] = childNode;
+      }
+      int from = i+1;
+      while(numChildren>0){
+        int childNode = children[--numChildren];
+        if(subtreeSizes[childNode]<=GRAIN){
+          if(numRanges==rangeStarts.length)
+            rangeStarts = Arrays.copyOf(rangeStarts, numRanges*2);
+          rangeStarts[numRanges++] = from;
+          nodesInRanges += subtreeSizes[childNode];
+          if(nodesInRanges>=GRAIN){
+            tasks.add(standardizeRanges(order, Arrays.copyOf(rangeStarts, numRanges), subtreeSizes, reservedNodes));
+            numRanges = 0;
+            nodesInRanges = 0;
+          }
+        }
+        from += subtreeSizes[childNode];
+      }
+    }
+    if(numRanges>0)
+      tasks.add(standardizeRanges(order, Arrays.copyOf(rangeStarts, numRanges), subtreeSizes, reservedNodes));
+    invokeAll(pool, tasks);
+
+    //what is left are the big subtrees' roots
+    Standardizer standardizer = new Standardizer(nodes);
+    for(int i = order.length-1; i >= 0; i--){
+      if(subtreeSizes[order[i]]>GRAIN){
+        standardizer.nextReservedNode = reservedNodes[order[i]];
+        standardizer.standardizeNode(order[i]);
+      }
+    }
+  }
+
+  /**
+   * @return the nodes of the tree rooted at node, each one before its children (and the children of
+   *         each node in reverse order)
+   */
+  private int[] topDownOrder(int node){
+    //visiting a node before its children (pushed left to right) and reversing the order gives
+    //exactly the bottom up, left to right order we need
+    int[] order = new int[64];
+    int count = 0;
+    int[] pending = new int[64];
+    int top = 0;
+    pending[top++] = node;
+    while(top>0){
+      int nextNode = pending[--top];
+      if(count==order.length)
+        order = Arrays.copyOf(order, count*2);
+      order[count++] = nextNode;
+      int childNode = nodes.getChild(nextNode);
+      while(childNode!=NodeTable.NONE){
+        if(top==pending.length)
+          pending = Arrays.copyOf(pending, top*2);
+        pending[top++] = childNode;
+        childNode = nodes.getSibling(childNode);
+      }
+    }
+    return Arrays.copyOf(order, count);
+  }
+
+  /**
+   * @return task that standardizes the subtrees whose roots are at the given positions in order
+   */
+  private Callable<Void> standardizeRanges(int[] order, int[] rangeStarts, int[] subtreeSizes, int[] reservedNodes){
+    return () -> {
+      Standardizer standardizer = new Standardizer(nodes);
+      for(int from: rangeStarts){
+        for(int i = from+subtreeSizes[order[from]]-1; i >= from; i--){
+          standardizer.nextReservedNode = reservedNodes[order[i]];
+          standardizer.standardizeNode(order[i]);
+        }
+      }
+      return null;
+    };
+  }
+
+  /**
+   * @return number of nodes {@link #standardizeNode(int)} creates for this node
+   */
+  private int countNewNodes(int node){
+    switch(nodes.getType(node)){
+      case AT:
+        return 1;
+      case WITHIN:
+      case SIMULTDEF:
+        return 2;
+      case REC:
+        return 4;
+      case FCNFORM:
+      case LAMBDA: //a lambda for every parameter but the last
+        int numChildren = 0;
+        for(int childNode = nodes.getChild(node); childNode!=NodeTable.NONE; childNode = nodes.getSibling(childNode))
+          numChildren++;
+        return Math.max(0, numChildren-2);
+      default:
+        return 0;
+    }
+  }
+
+  private static void invokeAll(ForkJoinPool pool, List<Callable<Void>> tasks){
+    try{
+      for(Future<Void> future: pool.invokeAll(tasks))
+        future.get();
+    }catch(InterruptedException e){
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while standardizing", e);
+    }catch(ExecutionException e){
+      if(e.getCause() instanceof RuntimeException)
+        throw (RuntimeException)e.getCause();
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /**
+   * Standardizes a single node whose children have all been standardized already.
+   */
+  public void standardizeNode(int node){
+    switch(nodes.getType(node)){
+      case LET:    //standardization for LET
+        int equalNode = nodes.getChild(node);
+        if(nodes.getType(equalNode)!=ASTNodeType.EQUAL)
+          throw new StandardizationException("LET/WHERE: left child is not EQUAL"); //safety
+        int e = nodes.getSibling(nodes.getChild(equalNode));
+        nodes.setSibling(nodes.getChild(equalNode), nodes.getSibling(equalNode));
+        nodes.setSibling(equalNode, e);
+        nodes.setType(equalNode, ASTNodeType.LAMBDA);
+        nodes.setType(node, ASTNodeType.GAMMA);
+        break;
+      case WHERE: //standardization for WHERE
+        equalNode = nodes.getSibling(nodes.getChild(node));
+        nodes.setSibling(nodes.getChild(node), NodeTable.NONE);
+        nodes.setSibling(equalNode, nodes.getChild(node));
+        nodes.setChild(node, equalNode);
+        nodes.setType(node, ASTNodeType.LET);
+        standardizeNode(node); //the children are still standardized; only the new LET needs work
+        break;
+      case FCNFORM: //standardization for FCNFORM
+        int childSibling = nodes.getSibling(nodes.getChild(node));
+        nodes.setSibling(nodes.getChild(node), constructLambdaChain(childSibling));
+        nodes.setType(node, ASTNodeType.EQUAL);
+        break;
+      case AT: //standardization for AT
+        int e1 = nodes.getChild(node);
+        int n = nodes.getSibling(e1);
+        int e2 = nodes.getSibling(n);
+        int gammaNode = newNode(ASTNodeType.GAMMA);
+        nodes.setChild(gammaNode, n);
+        nodes.setSibling(n, e1);
+        nodes.setSibling(e1, NodeTable.NONE);
+        nodes.setSibling(gammaNode, e2);
+        nodes.setChild(node, gammaNode);
+        nodes.setType(node, ASTNodeType.GAMMA);
+        break;
+      case WITHIN: //standardization for WITHIN
+        if(nodes.getType(nodes.getChild(node))!=ASTNodeType.EQUAL || nodes.getType(nodes.getSibling(nodes.getChild(node)))!=ASTNodeType.EQUAL)
+          throw new StandardizationException("WITHIN: one of the children is not EQUAL"); //error handle
+        int x1 = nodes.getChild(nodes.getChild(node));
+        e1 = nodes.getSibling(x1);
+        int x2 = nodes.getChild(nodes.getSibling(nodes.getChild(node)));
+        e2 = nodes.getSibling(x2);
+        int lambdaNode = newNode(ASTNodeType.LAMBDA);
+        nodes.setSibling(x1, e2);
+        nodes.setChild(lambdaNode, x1);
+        nodes.setSibling(lambdaNode, e1);
+        gammaNode = newNode(ASTNodeType.GAMMA);
+        nodes.setChild(gammaNode, lambdaNode);
+        nodes.setSibling(x2, gammaNode);
+        nodes.setChild(node, x2);
+        nodes.setType(node, ASTNodeType.EQUAL);
+        break;
+      case SIMULTDEF: //standardization for SIMULTDEF
+        int commaNode = newNode(ASTNodeType.COMMA);
+        int tauNode = newNode(ASTNodeType.TAU);
+        int childNode = nodes.getChild(node);
+        while(childNode!=NodeTable.NONE){
+          populateCommaAndTauNode(childNode, commaNode, tauNode);
+          childNode = nodes.getSibling(childNode);
+        }
+        nodes.setSibling(commaNode, tauNode);
+        nodes.setChild(node, commaNode);
+        nodes.setType(node, ASTNodeType.EQUAL);
+        break;
+      case REC: //standardization for REC
+        childNode = nodes.getChild(node);
+        if(nodes.getType(childNode)!=ASTNodeType.EQUAL)
+          throw new StandardizationException("REC: child is not EQUAL"); //error handle
+        int x = nodes.getChild(childNode);
+        lambdaNode = newNode(ASTNodeType.LAMBDA);
+        nodes.setChild(lambdaNode, x); //x is already attached to e
+        int yStarNode = newNode(ASTNodeType.YSTAR);
+        nodes.setSibling(yStarNode, lambdaNode);
+        gammaNode = newNode(ASTNodeType.GAMMA);
+        nodes.setChild(gammaNode, yStarNode);
+        int xWithSiblingGamma = newNode(nodes.getType(x)); //same as x except the sibling is not e but gamma
+        nodes.setChild(xWithSiblingGamma, nodes.getChild(x));
+        nodes.setSibling(xWithSiblingGamma, gammaNode);
+        nodes.setValueIndex(xWithSiblingGamma, nodes.getValueIndex(x));
+        nodes.setChild(node, xWithSiblingGamma);
+        nodes.setType(node, ASTNodeType.EQUAL);
+        break;
+      case LAMBDA: //standardization for LAMBDA
+
+        childSibling = nodes.getSibling(nodes.getChild(node));
+        nodes.setSibling(nodes.getChild(node), constructLambdaChain(childSibling));
+        break;
+      default:   // Node types we do NOT standardize will be ignored: OR AND + - * / EXP GR GE LS LE EQ NE NOT NEG CONDITIONAL TAU COMMA
+        break;
+    }
+  }
+
+  
+  private void populateCommaAndTauNode(int equalNode, int commaNode, int tauNode){
+    if(nodes.getType(equalNode)!=ASTNodeType.EQUAL)
+      throw new StandardizationException("SIMULTDEF: one of the children is not EQUAL"); //error handle
+    int x = nodes.getChild(equalNode);
+    int e = nodes.getSibling(x);
+    setChild(commaNode, x);
+    setChild(tauNode, e);
+  }
+
+
+  
+  private void setChild(int parentNode, int childNode){ // creates a new child of the parent or appends the child 
+                                                        //node passed in as the last sibling of the parent's existing children 
+    if(nodes.getChild(parentNode)==NodeTable.NONE)
+      nodes.setChild(parentNode, childNode);
+    else{
+      int lastSibling = nodes.getChild(parentNode);
+      while(nodes.getSibling(lastSibling)!=NodeTable.NONE)
+        lastSibling = nodes.getSibling(lastSibling);
+      nodes.setSibling(lastSibling, childNode);
+    }
+    nodes.setSibling(childNode, NodeTable.NONE);
+  }
+
+  private int newNode(ASTNodeType type){
+    if(nextReservedNode==NodeTable.NONE)
+      return nodes.newNode(type);
+    nodes.initNode(nextReservedNode, type);
+    return nextReservedNode++;
+  }
+
+  private int constructLambdaChain(int node){
+    if(nodes.getSibling(node)==NodeTable.NONE)
+      return node;
+    
+    int lambdaNode = newNode(ASTNodeType.LAMBDA);
+    nodes.setChild(lambdaNode, node);
+    if(nodes.getSibling(nodes.getSibling(node))!=NodeTable.NONE)
+      nodes.setSibling(node, constructLambdaChain(nodes.getSibling(node)));
+    return lambdaNode;
+  }
+}
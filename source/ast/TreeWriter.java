@@ -0,0 +1,246 @@
+package ast;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Streams a tree in a {@link NodeTable} out to a channel through a single buffer. The tree is
+ * walked with an explicit stack, so neither depth nor width matters.
+ *
+ * <p>Formats:
+ * <ul>
+ * <li>{@link Format#TEXT}: the dotted format of {@code -ast}/{@code -st}, byte for byte.
+ * <li>{@link Format#BINARY}: the bytes {@code RPAL}, a version byte, the value table (a count,
+ * then each value as a length and its UTF-8 bytes), then the nodes in preorder. A node is its type
+ * (the ordinal of its {@link ASTNodeType}), a flags byte ({@link #HAS_CHILD}, {@link #HAS_SIBLING},
+ * {@link #HAS_VALUE}), its source line number and, if it has one, the index of its value in the
+ * value table. Counts, lengths, line numbers and indices are unsigned LEB128 varints. The tree
+ * ends with the last node that has neither a child nor a sibling left to come.
+ * <li>{@link Format#JSON}: UTF-8, each node an object with "type" (the {@link ASTNodeType} name),
+ * "line", and "value" and "children" where present.
+ * </ul>
+ */
+public class TreeWriter{
+  public enum Format{
+    TEXT, BINARY, JSON
+  }
+
+  public static final byte BINARY_VERSION = 1;
+  public static final int HAS_CHILD = 1;
+  public static final int HAS_SIBLING = 2;
+  public static final int HAS_VALUE = 4;
+  private static final int BUFFER_SIZE = 1<<16;
+  private static final byte[] BINARY_MAGIC = {'R', 'P', 'A', 'L'};
+  private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+
+  private WritableByteChannel channel;
+  private Format format;
+  private ByteBuffer buffer;
+  private Charset textCharset; //what System.out.printf would encode values with
+
+  public TreeWriter(WritableByteChannel channel, Format format){
+    this.channel = channel;
+    this.format = format;
+    buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    textCharset = Charset.defaultCharset();
+  }
+
+  /**
+   * Writes the tree rooted at root and flushes the buffer to the channel.
+   */
+  public void write(NodeTable nodes, int root) throws IOException{
+    switch(format){
+      case TEXT:
+        writeText(nodes, root);
+        break;
+      case BINARY:
+        writeBinary(nodes, root);
+        break;
+      case JSON:
+        writeJSON(nodes, root);
+        break;
+    }
+    flush();
+  }
+
+  private void writeText(NodeTable nodes, int root) throws IOException{
+    int[] pendingNodes = new int[64];
+    int[] pendingDepths = new int[64];
+    int top = 0;
+    pendingNodes[top] = root;
+    pendingDepths[top++] = 0;
+    while(top>0){
+      top--;
+      int node = pendingNodes[top];
+      int depth = pendingDepths[top];
+      if(node==NodeTable.NONE)
+        continue;
+
+      for(int i = 0; i < depth; i++)
+        putByte('.');
+      ASTNodeType type = nodes.getType(node);
+      String printName = type.getPrintName();
+      if(type==ASTNodeType.IDENTIFIER || type==ASTNodeType.INTEGER || type==ASTNodeType.STRING){
+        int valueAt = printName.indexOf("%s");
+        putString(printName.substring(0, valueAt), textCharset);
+        putString(String.valueOf(nodes.getValue(node)), textCharset);
+        putString(printName.substring(valueAt+2), textCharset);
+        putByte('\n');
+      }
+      else{
+        putString(printName, textCharset);
+        putBytes(LINE_SEPARATOR);
+      }
+
+      if(top+2>pendingNodes.length){
+        pendingNodes = Arrays.copyOf(pendingNodes, pendingNodes.length*2);
+        pendingDepths = Arrays.copyOf(pendingDepths, pendingDepths.length*2);
+      }
+      pendingNodes[top] = nodes.getSibling(node);
+      pendingDepths[top++] = depth;
+      pendingNodes[top] = nodes.getChild(node);
+      pendingDepths[top++] = depth+1;
+    }
+  }
+
+  private void writeBinary(NodeTable nodes, int root) throws IOException{
+    putBytes(BINARY_MAGIC);
+    putByte(BINARY_VERSION);
+    putVarint(nodes.valueCount());
+    for(int i = 0; i < nodes.valueCount(); i++){
+      byte[] value = nodes.valueAt(i).getBytes(StandardCharsets.UTF_8);
+      putVarint(value.length);
+      putBytes(value);
+    }
+
+    int[] pending = new int[64];
+    int top = 0;
+    pending[top++] = root;
+    boolean isRoot = true;
+    while(top>0){
+      int node = pending[--top];
+      int child = nodes.getChild(node);
+      int sibling = isRoot? NodeTable.NONE : nodes.getSibling(node); //the root's siblings are not part of the tree
+      int valueIndex = nodes.getValueIndex(node);
+      isRoot = false;
+
+      putByte(nodes.getType(node).ordinal());
+      putByte((child!=NodeTable.NONE? HAS_CHILD : 0) | (sibling!=NodeTable.NONE? HAS_SIBLING : 0) |
+          (valueIndex!=NodeTable.NONE? HAS_VALUE : 0));
+      putVarint(nodes.getSourceLineNumber(node));
+      if(valueIndex!=NodeTable.NONE)
+        putVarint(valueIndex);
+
+      if(top+2>pending.length)
+        pending = Arrays.copyOf(pending, pending.length*2);
+      if(sibling!=NodeTable.NONE)
+        pending[top++] = sibling;
+      if(child!=NodeTable.NONE)
+        pending[top++] = child;
+    }
+  }
+
+  private void writeJSON(NodeTable nodes, int root) throws IOException{
+    //a pending entry is either a node to write or, complemented (~node), a node whose children are done
+    int[] pending = new int[64];
+    int top = 0;
+    pending[top++] = root;
+    while(top>0){
+      int entry = pending[--top];
+      if(top+2>pending.length)
+        pending = Arrays.copyOf(pending, pending.length*2);
+
+      int node;
+      if(entry<0){
+        node = ~entry;
+        putString("]}", StandardCharsets.UTF_8);
+      }
+      else{
+        node = entry;
+        putString("{\"type\":\"", StandardCharsets.UTF_8);
+        putString(nodes.getType(node).name(), StandardCharsets.UTF_8);
+        putString("\",\"line\":", StandardCharsets.UTF_8);
+        putString(Integer.toString(nodes.getSourceLineNumber(node)), StandardCharsets.UTF_8);
+        if(nodes.getValueIndex(node)!=NodeTable.NONE){
+          putString(",\"value\":", StandardCharsets.UTF_8);
+          putJSONString(nodes.getValue(node));
+        }
+        if(nodes.getChild(node)!=NodeTable.NONE){
+          putString(",\"children\":[", StandardCharsets.UTF_8);
+          pending[top++] = ~node;
+          pending[top++] = nodes.getChild(node);
+          continue;
+        }
+        putByte('}');
+      }
+
+      if(node!=root && nodes.getSibling(node)!=NodeTable.NONE){
+        putByte(',');
+        pending[top++] = nodes.getSibling(node);
+      }
+    }
+    putByte('\n');
+  }
+
+  private void putJSONString(String value) throws IOException{
+    putByte('"');
+    for(int i = 0; i < value.length(); i++){
+      char c = value.charAt(i);
+      if(c=='"' || c=='\\'){
+        putByte('\\');
+        putByte(c);
+      }
+      else if(c<0x20)
+        putString(String.format("\\u%04x", (int)c), StandardCharsets.UTF_8);
+      else if(c<0x80)
+        putByte(c);
+      else
+        putString(String.valueOf(c), StandardCharsets.UTF_8);
+    }
+    putByte('"');
+  }
+
+  private void putString(String s, Charset charset) throws IOException{
+    for(int i = 0; i < s.length(); i++){
+      if(s.charAt(i)>=0x80){ //slow path; the scanner only lets ASCII through, so this is rare
+        putBytes(s.getBytes(charset));
+        return;
+      }
+    }
+    for(int i = 0; i < s.length(); i++)
+      putByte(s.charAt(i));
+  }
+
+  private void putVarint(int value) throws IOException{
+    while((value & ~0x7f)!=0){
+      putByte((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    putByte(value);
+  }
+
+  private void putBytes(byte[] bytes) throws IOException{
+    for(byte b: bytes)
+      putByte(b);
+  }
+
+  private void putByte(int b) throws IOException{
+    if(!buffer.hasRemaining())
+      flush();
+    buffer.put((byte)b);
+  }
+
+  /**
+   * Writes out whatever is in the buffer.
+   */
+  public void flush() throws IOException{
+    buffer.flip();
+    while(buffer.hasRemaining())
+      channel.write(buffer);
+    buffer.clear();
+  }
+}
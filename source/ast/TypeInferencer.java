@@ -0,0 +1,560 @@
+package ast;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Hindley-Milner style type inference over a standardized tree in a {@link NodeTable}, with a dynamic type
+ * for whatever it cannot follow. Run it after the other passes that rewrite the tree and before
+ * {@link HashConser}, since it marks nodes in place.
+ *
+ * <p>Types are integers, strings, truthvalues, dummy, functions, tuples (of a known length) and type
+ * variables, which are unified as usual. Variables bound by a let are generalized, so each use of a let-bound
+ * function gets its own instance of the type variables it does not share with its surroundings. Whatever
+ * RPAL does not type this way (the element a tuple selection picks, the result of aug, two different types
+ * meeting, a type that would contain itself) is dynamic, and so is anything that flows into a dynamic type,
+ * all the way down: a function that goes into a tuple may come out of it and be applied to anything.
+ *
+ * <p>An operator (arithmetic, comparison, {@code eq}, {@code ne}, {@code or}, {@code &}, {@code not},
+ * {@code neg}) or conditional whose operands end up with the types it needs (e.g., two integers for
+ * {@code +}, a truthvalue for the condition) is marked (see {@link NodeTable#setProvenOperation(int, boolean)}):
+ * the CSE machine skips checking the types of its operands. Every other one keeps its checks, and hence its
+ * error messages.
+ */
+public class TypeInferencer{
+  //what to do with a pending node
+  private static final int VISIT = 0; //type the subtree rooted at the node
+  private static final int BIND = 1; //the rand of a let is done: bind the variables of its lambda, then visit the body
+  private static final int UNBIND = 2; //the body of a lambda is done
+  private static final int EXIT = 3; //the children of the node are done: type the node itself
+
+  //kinds of types
+  private static final int VARIABLE = 0;
+  private static final int INTEGER = 1;
+  private static final int STRING = 2;
+  private static final int TRUTHVALUE = 3;
+  private static final int DUMMY = 4;
+  private static final int FUNCTION = 5; //args: the argument and the result
+  private static final int TUPLE = 6; //args: the elements
+  private static final int DYNAMIC = 7;
+
+  private static final int MONOMORPHIC = Integer.MAX_VALUE; //see Binding.genericLevel
+
+  private NodeTable nodes;
+  private Type[] types; //the type of each node visited (for the variable of a lambda, the type bound to it)
+  private Map<String, ArrayDeque<Binding>> scope; //for each name, the bindings in scope, innermost first
+  private BitSet sites; //operators and conditionals
+  private int level; //how many lets the rands of which are being visited
+  private int[] pendingActions;
+  private int[] pendingNodes;
+  private int top;
+
+  public TypeInferencer(NodeTable nodes){
+    this.nodes = nodes;
+  }
+
+  private static class Type{
+    int kind;
+    Type[] args;
+    Type parent; //the type this one was unified with (and hence stands for), if any
+    int level; //VARIABLE: the level it was made at (a variable made in the rand of a let can be generalized)
+
+    Type(int kind, Type... args){
+      this.kind = kind;
+      this.args = args;
+    }
+  }
+
+  private static class Binding{
+    Type type;
+    int genericLevel; //the variables in type made at a deeper level are made anew for each use
+
+    Binding(Type type, int genericLevel){
+      this.type = type;
+      this.genericLevel = genericLevel;
+    }
+  }
+
+  /**
+   * Infers the types in the tree rooted at root and marks the operators and conditionals whose operands are
+   * proven to have the types they need. Uses explicit stacks, so the depth of the tree does not matter.
+   * @return how many of the operators and conditionals were marked, e.g. {@code 12 of 20 operation sites (60%)},
+   *         or null if the tree has none
+   */
+  public String infer(int root){
+    types = new Type[nodes.size()];
+    scope = new HashMap<String, ArrayDeque<Binding>>();
+    sites = new BitSet();
+    level = 0;
+    pendingActions = new int[64];
+    pendingNodes = new int[64];
+    top = 0;
+    push(VISIT, root);
+    while(top>0){
+      top--;
+      int node = pendingNodes[top];
+      switch(pendingActions[top]){
+        case VISIT:
+          visit(node);
+          break;
+        case BIND:
+          level--;
+          int lambda = nodes.getChild(node);
+          bindLetVariables(lambda, types[nodes.getSibling(lambda)]);
+          push(UNBIND, lambda);
+          push(VISIT, lambdaBody(lambda));
+          break;
+        case UNBIND:
+          unbindVariables(node);
+          break;
+        case EXIT:
+          exit(node);
+          break;
+      }
+    }
+
+    int numSites = 0, numProven = 0;
+    for(int site = sites.nextSetBit(0); site>=0; site = sites.nextSetBit(site+1)){
+      numSites++;
+      if(isProven(site)){
+        nodes.setProvenOperation(site, true);
+        numProven++;
+      }
+    }
+    if(numSites==0)
+      return null;
+    return numProven+" of "+numSites+" operation sites ("+100*numProven/numSites+"%)";
+  }
+
+  private void push(int action, int node){
+    if(top==pendingNodes.length){
+      pendingActions = Arrays.copyOf(pendingActions, top*2);
+      pendingNodes = Arrays.copyOf(pendingNodes, top*2);
+    }
+    pendingActions[top] = action;
+    pendingNodes[top++] = node;
+  }
+
+  private void visit(int node){
+    switch(nodes.getType(node)){
+      case INTEGER:
+        types[node] = new Type(INTEGER);
+        return;
+      case STRING:
+        types[node] = new Type(STRING);
+        return;
+      case TRUE:
+      case FALSE:
+        types[node] = new Type(TRUTHVALUE);
+        return;
+      case DUMMY:
+        types[node] = new Type(DUMMY);
+        return;
+      case NIL:
+        types[node] = new Type(TUPLE);
+        return;
+      case YSTAR: //other than in a rec definition
+        types[node] = new Type(DYNAMIC);
+        return;
+      case IDENTIFIER:
+        types[node] = lookup(nodes.getValue(node));
+        return;
+      case LAMBDA:
+        bindVariables(node);
+        push(EXIT, node);
+        push(UNBIND, node);
+        push(VISIT, lambdaBody(node));
+        return;
+      case GAMMA:
+        int rator = nodes.getChild(node);
+        int rand = nodes.getSibling(rator);
+        if(nodes.getType(rator)==ASTNodeType.LAMBDA){ //a let: its rand first, outside the scope of its variables
+          level++;
+          push(EXIT, node);
+          push(BIND, node);
+          push(VISIT, rand);
+          return;
+        }
+        if(nodes.getType(rator)==ASTNodeType.YSTAR && nodes.getType(rand)==ASTNodeType.LAMBDA){ //a rec definition
+          bindVariables(rand);
+          push(EXIT, node);
+          push(UNBIND, rand);
+          push(VISIT, lambdaBody(rand));
+          return;
+        }
+        break;
+      default:
+        break;
+    }
+    push(EXIT, node);
+    for(int child = nodes.getChild(node); child!=NodeTable.NONE; child = nodes.getSibling(child))
+      push(VISIT, child);
+  }
+
+  private void exit(int node){
+    int child = nodes.getChild(node);
+    switch(nodes.getType(node)){
+      case LAMBDA:
+        types[node] = new Type(FUNCTION, types[child], types[nodes.getSibling(child)]);
+        return;
+      case GAMMA:
+        int rand = nodes.getSibling(child);
+        if(nodes.getType(child)==ASTNodeType.LAMBDA) //a let
+          types[node] = types[lambdaBody(child)];
+        else if(nodes.getType(child)==ASTNodeType.YSTAR && nodes.getType(rand)==ASTNodeType.LAMBDA){ //a rec definition
+          Type variableType = types[nodes.getChild(rand)];
+          unify(variableType, types[lambdaBody(rand)]);
+          types[node] = variableType;
+        }
+        else
+          types[node] = apply(types[child], types[rand]);
+        return;
+      case TAU:
+        int numElements = 0;
+        for(int element = child; element!=NodeTable.NONE; element = nodes.getSibling(element))
+          numElements++;
+        Type[] elementTypes = new Type[numElements];
+        for(int element = child, i = 0; element!=NodeTable.NONE; element = nodes.getSibling(element))
+          elementTypes[i++] = types[element];
+        types[node] = new Type(TUPLE, elementTypes);
+        return;
+      case CONDITIONAL:
+        int thenNode = nodes.getSibling(child);
+        unify(types[child], new Type(TRUTHVALUE));
+        unify(types[thenNode], types[nodes.getSibling(thenNode)]);
+        types[node] = types[thenNode];
+        sites.set(node);
+        return;
+      case PLUS:
+      case MINUS:
+      case MULT:
+      case DIV:
+      case EXP:
+        types[node] = operation(node, INTEGER, INTEGER);
+        return;
+      case LS:
+      case LE:
+      case GR:
+      case GE:
+        types[node] = operation(node, INTEGER, TRUTHVALUE);
+        return;
+      case OR:
+      case AND:
+      case NOT:
+        types[node] = operation(node, TRUTHVALUE, TRUTHVALUE);
+        return;
+      case NEG:
+        types[node] = operation(node, INTEGER, INTEGER);
+        return;
+      case EQ:
+      case NE:
+        unify(types[child], types[nodes.getSibling(child)]);
+        types[node] = new Type(TRUTHVALUE);
+        sites.set(node);
+        return;
+      case AUG: //a tuple of some length, with anything in it
+        for(int operand = child; operand!=NodeTable.NONE; operand = nodes.getSibling(operand))
+          makeDynamic(types[operand]);
+        types[node] = new Type(DYNAMIC);
+        return;
+      default:
+        types[node] = new Type(DYNAMIC);
+        return;
+    }
+  }
+
+  /**
+   * Requires the operands of node to be of the given kind.
+   * @return the type of the result
+   */
+  private Type operation(int node, int operandKind, int resultKind){
+    for(int operand = nodes.getChild(node); operand!=NodeTable.NONE; operand = nodes.getSibling(operand))
+      unify(types[operand], new Type(operandKind));
+    sites.set(node);
+    return new Type(resultKind);
+  }
+
+  /**
+   * @return the type of applying something of type rator to something of type rand
+   */
+  private Type apply(Type rator, Type rand){
+    if(find(rator).kind==TUPLE){ //selection: the element could be any of them
+      unify(rand, new Type(INTEGER));
+      makeDynamic(rator);
+      return new Type(DYNAMIC);
+    }
+    Type result = newVariable();
+    unify(rator, new Type(FUNCTION, rand, result));
+    return result;
+  }
+
+  /**
+   * @return true if the operands of the operator or conditional node are of the types it needs
+   */
+  private boolean isProven(int node){
+    int child = nodes.getChild(node);
+    switch(nodes.getType(node)){
+      case CONDITIONAL:
+        return find(types[child]).kind==TRUTHVALUE;
+      case OR:
+      case AND:
+      case NOT:
+        for(int operand = child; operand!=NodeTable.NONE; operand = nodes.getSibling(operand)){
+          if(find(types[operand]).kind!=TRUTHVALUE)
+            return false;
+        }
+        return true;
+      case EQ:
+      case NE:
+        int kind = find(types[child]).kind;
+        return (kind==INTEGER || kind==STRING || kind==TRUTHVALUE) && find(types[nodes.getSibling(child)]).kind==kind;
+      default: //integer operands
+        for(int operand = child; operand!=NodeTable.NONE; operand = nodes.getSibling(operand)){
+          if(find(types[operand]).kind!=INTEGER)
+            return false;
+        }
+        return true;
+    }
+  }
+
+  private int lambdaBody(int lambda){
+    return nodes.getSibling(nodes.getChild(lambda));
+  }
+
+  /**
+   * Binds the variables of a lambda to new type variables (the variable of a lambda with several gets the
+   * type of a tuple of them).
+   */
+  private void bindVariables(int lambda){
+    int variable = nodes.getChild(lambda);
+    if(nodes.getType(variable)!=ASTNodeType.COMMA){
+      types[variable] = newVariable();
+      bind(variable, new Binding(types[variable], MONOMORPHIC));
+      return;
+    }
+    int numVariables = 0;
+    for(int child = nodes.getChild(variable); child!=NodeTable.NONE; child = nodes.getSibling(child))
+      numVariables++;
+    Type[] elementTypes = new Type[numVariables];
+    int i = 0;
+    for(int child = nodes.getChild(variable); child!=NodeTable.NONE; child = nodes.getSibling(child)){
+      types[child] = elementTypes[i++] = newVariable();
+      bind(child, new Binding(types[child], MONOMORPHIC));
+    }
+    types[variable] = new Type(TUPLE, elementTypes);
+  }
+
+  /**
+   * Binds the variables of the lambda of a let to the type of its rand, generalized if there is one variable.
+   */
+  private void bindLetVariables(int lambda, Type randType){
+    int variable = nodes.getChild(lambda);
+    if(nodes.getType(variable)!=ASTNodeType.COMMA){
+      types[variable] = randType;
+      bind(variable, new Binding(randType, level));
+      return;
+    }
+    bindVariables(lambda);
+    unify(types[variable], randType);
+  }
+
+  private void bind(int variable, Binding binding){
+    String name = nodes.getValue(variable);
+    if(name==null) //e.g., fn () . E
+      return;
+    ArrayDeque<Binding> nameBindings = scope.get(name);
+    if(nameBindings==null){
+      nameBindings = new ArrayDeque<Binding>();
+      scope.put(name, nameBindings);
+    }
+    nameBindings.push(binding);
+  }
+
+  private void unbindVariables(int lambda){
+    int variable = nodes.getChild(lambda);
+    if(nodes.getType(variable)!=ASTNodeType.COMMA){
+      if(nodes.getValue(variable)!=null)
+        scope.get(nodes.getValue(variable)).pop();
+      return;
+    }
+    for(int child = nodes.getChild(variable); child!=NodeTable.NONE; child = nodes.getSibling(child)){
+      if(nodes.getValue(child)!=null)
+        scope.get(nodes.getValue(child)).pop();
+    }
+  }
+
+  /**
+   * @return the type of a use of name
+   */
+  private Type lookup(String name){
+    ArrayDeque<Binding> bindings = scope.get(name);
+    Binding binding = bindings==null? null : bindings.peek();
+    if(binding!=null)
+      return binding.genericLevel==MONOMORPHIC? binding.type : instantiate(binding.type, binding.genericLevel);
+    switch(name){ //a built-in, unless undeclared
+      case "Print":
+      case "print":
+        return new Type(FUNCTION, newVariable(), new Type(DUMMY));
+      case "Isinteger":
+      case "Isstring":
+      case "Istuple":
+      case "Isdummy":
+      case "Istruthvalue":
+      case "Isfunction":
+      case "Null":
+        return new Type(FUNCTION, newVariable(), new Type(TRUTHVALUE));
+      case "Order":
+        return new Type(FUNCTION, newVariable(), new Type(INTEGER));
+      case "Stem":
+      case "Stern":
+        return new Type(FUNCTION, new Type(STRING), new Type(STRING));
+      case "Conc":
+      case "conc":
+        return new Type(FUNCTION, new Type(STRING), new Type(FUNCTION, new Type(STRING), new Type(STRING)));
+      case "ItoS":
+        return new Type(FUNCTION, new Type(INTEGER), new Type(STRING));
+      default:
+        return new Type(DYNAMIC);
+    }
+  }
+
+  private Type newVariable(){
+    Type variable = new Type(VARIABLE);
+    variable.level = level;
+    return variable;
+  }
+
+  private Type find(Type type){
+    Type root = type;
+    while(root.parent!=null)
+      root = root.parent;
+    while(type!=root){
+      Type next = type.parent;
+      type.parent = root;
+      type = next;
+    }
+    return root;
+  }
+
+  /**
+   * Makes the two types the same; where they cannot be, both become dynamic.
+   */
+  private void unify(Type type1, Type type2){
+    ArrayDeque<Type> pending = new ArrayDeque<Type>(); //pairs of types to unify
+    pending.push(type1);
+    pending.push(type2);
+    while(!pending.isEmpty()){
+      Type a = find(pending.pop());
+      Type b = find(pending.pop());
+      if(a==b)
+        continue;
+      if(a.kind==VARIABLE || b.kind==VARIABLE){
+        Type variable = a.kind==VARIABLE? a : b;
+        Type other = variable==a? b : a;
+        if(!bindVariable(variable, other))
+          makeDynamic(other); //it would contain itself
+        variable.parent = other;
+      }
+      else if(a.kind==DYNAMIC || b.kind==DYNAMIC){
+        makeDynamic(a);
+        makeDynamic(b);
+        a.parent = b;
+      }
+      else if(a.kind==b.kind && (a.kind!=TUPLE || a.args.length==b.args.length)){
+        a.parent = b;
+        for(int i = 0; i < a.args.length; i++){
+          pending.push(a.args[i]);
+          pending.push(b.args[i]);
+        }
+      }
+      else{
+        makeDynamic(a);
+        makeDynamic(b);
+        a.parent = b;
+      }
+    }
+  }
+
+  /**
+   * Lowers the level of the variables in type to that of variable, which is about to stand for it (so type is
+   * generalized no more than variable would have been).
+   * @return false if variable occurs in type
+   */
+  private boolean bindVariable(Type variable, Type type){
+    ArrayDeque<Type> pending = new ArrayDeque<Type>();
+    pending.push(type);
+    while(!pending.isEmpty()){
+      Type next = find(pending.pop());
+      if(next==variable)
+        return false;
+      if(next.kind==VARIABLE)
+        next.level = Math.min(next.level, variable.level);
+      for(Type arg: next.args)
+        pending.push(arg);
+    }
+    return true;
+  }
+
+  /**
+   * Makes type, and every type in it, dynamic.
+   */
+  private void makeDynamic(Type type){
+    ArrayDeque<Type> pending = new ArrayDeque<Type>();
+    pending.push(type);
+    while(!pending.isEmpty()){
+      Type next = find(pending.pop());
+      if(next.kind==DYNAMIC)
+        continue;
+      next.kind = DYNAMIC;
+      for(Type arg: next.args)
+        pending.push(arg);
+      next.args = new Type[0];
+    }
+  }
+
+  /**
+   * @return type, with each variable in it made at a level deeper than genericLevel replaced by a new one
+   *         (the same one wherever it occurs); the parts of type without any such variable are shared
+   */
+  private Type instantiate(Type type, int genericLevel){
+    Map<Type, Type> instances = new IdentityHashMap<Type, Type>();
+    ArrayDeque<Type> pending = new ArrayDeque<Type>();
+    pending.push(find(type));
+    while(!pending.isEmpty()){
+      Type next = pending.peek();
+      if(instances.containsKey(next)){
+        pending.pop();
+        continue;
+      }
+      boolean argsDone = true;
+      for(Type arg: next.args){
+        if(!instances.containsKey(find(arg))){
+          pending.push(find(arg));
+          argsDone = false;
+        }
+      }
+      if(!argsDone)
+        continue;
+      pending.pop();
+      Type instance = next;
+      if(next.kind==VARIABLE && next.level>genericLevel)
+        instance = newVariable();
+      else if(next.args.length>0){
+        Type[] args = new Type[next.args.length];
+        boolean changed = false;
+        for(int i = 0; i < args.length; i++){
+          args[i] = instances.get(find(next.args[i]));
+          changed |= args[i]!=find(next.args[i]);
+        }
+        if(changed)
+          instance = new Type(next.kind, args);
+      }
+      instances.put(next, instance);
+    }
+    return instances.get(find(type));
+  }
+}
@@ -0,0 +1,41 @@
+package csem;
+
+import ast.ASTNode;
+import ast.ASTNodeType;
+
+/**
+ * Used to evaluate curried calls. 'gamma (gamma (gamma f a) b) c' in the standardized tree
+ * becomes 'Application(3) f a b c' on the control stack: the rator and the rands are evaluated in
+ * the same order as before, and then applied all at once. If the rator is a chain of (at least) as
+ * many lambdas as there are rands, or the eta of one, the variables of all of them are bound in a
+ * single environment and only the body of the innermost lambda is evaluated. Otherwise (e.g., for a
+ * partial application, or a built-in) the rands are applied one at a time, as the gammas would have.
+ *
+ * <p>The number of rands is also kept as the value of the node, as a string.
+ */
+public class Application extends ASTNode{
+  private int numRands;
+
+  public Application(){
+    setType(ASTNodeType.APPLY);
+  }
+
+  public Application(int numRands){
+    this();
+    setValue(Integer.toString(numRands));
+  }
+
+  @Override
+  public void setValue(String value){
+    super.setValue(value);
+    numRands = Integer.parseInt(value);
+  }
+
+  public int getNumRands(){
+    return numRands;
+  }
+
+  public Application accept(NodeCopier nodeCopier){
+    return nodeCopier.copy(this);
+  }
+}
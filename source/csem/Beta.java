@@ -23,6 +23,7 @@ import ast.ASTNodeType;
 public class Beta extends ASTNode{
   private Stack<ASTNode> thenBody;
   private Stack<ASTNode> elseBody;
+  private boolean conditionProven; //see ast.TypeInferencer
   
   public Beta(){
     setType(ASTNodeType.BETA);
@@ -49,5 +50,16 @@ public class Beta extends ASTNode{
   public void setElseBody(Stack<ASTNode> elseBody){
     this.elseBody = elseBody;
   }
+
+  /**
+   * @return true if the condition is proven to be a truthvalue, so the CSE machine does not check it
+   */
+  public boolean isConditionProven(){
+    return conditionProven;
+  }
+
+  public void setConditionProven(boolean conditionProven){
+    this.conditionProven = conditionProven;
+  }
   
 }
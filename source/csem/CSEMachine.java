@@ -1,14 +1,26 @@
 package csem;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.Stack;
 import ast.AST;
 import ast.ASTNode;
 import ast.ASTNodeType;
 
 public class CSEMachine{
+  private static final ASTNode END_OF_LET = new ASTNode(); //restores the environment in effect before a Let
+  private static final ASTNode GAMMA = new ASTNode(); //applies one rand of an Application that cannot be applied at once
+  private static final Environment CLOSED_ENV = new Environment(); //captured by closures with no free variables (never added to)
+  static{
+    END_OF_LET.setType(ASTNodeType.UNBIND);
+    GAMMA.setType(ASTNodeType.GAMMA);
+  }
 
   private Stack<ASTNode> valueStack;
   private Delta rootDelta;
+  private Environment[] frames = new Environment[64]; //environments of calls and lets, reused last in, first out (see acquireFrame())
+  private int numFrames; //how many of them are in use
+  private int frameBase; //the first frame of the call whose body is being evaluated
 
   public CSEMachine(AST ast){
     if(!ast.isStandardized())
@@ -18,26 +30,84 @@ public class CSEMachine{
     valueStack = new Stack<ASTNode>();
   }
 
+  /**
+   * @param rootDelta control structures built earlier, e.g. loaded from a {@link ProgramArtifact}
+   */
+  public CSEMachine(Delta rootDelta){
+    this.rootDelta = rootDelta;
+    rootDelta.setLinkedEnv(new Environment()); //primitive environment
+    valueStack = new Stack<ASTNode>();
+  }
+
   public void evaluateProgram(){
-    processControlStack(rootDelta, rootDelta.getLinkedEnv());
+    processControlStack(rootDelta, rootDelta.getLinkedEnv(), 0);
   }
 
-  private void processControlStack(Delta currentDelta, Environment currentEnv){
+  /**
+   * @param frameBase the number of frames in use before currentEnv (if it is a frame) was acquired; when the body
+   *        is done, the frames acquired since are released
+   */
+  private void processControlStack(Delta currentDelta, Environment currentEnv, int frameBase){
+    int outerFrameBase = this.frameBase;
+    this.frameBase = frameBase;
     //create a new control stack and add all of the delta's body to it so that the delta's body isn't
     //modified whenever the control stack is popped in all the functions below
     Stack<ASTNode> controlStack = new Stack<ASTNode>();
     controlStack.addAll(currentDelta.getBody());
     
     while(!controlStack.isEmpty())
-      processCurrentNode(currentDelta, currentEnv, controlStack);
+      currentEnv = processCurrentNode(currentDelta, currentEnv, controlStack);
+    releaseFrames(frameBase);
+    this.frameBase = outerFrameBase;
+  }
+
+  /**
+   * @return an empty environment linked to parent, for the variables of a call or let, taken from the frame stack
+   *         (reusing one released earlier, if any). It is released when the call or let is done. A closure made in
+   *         the meantime captures the values of its free variables, not the environment (see capture()), so
+   *         nothing refers to it by then.
+   */
+  private Environment acquireFrame(Environment parent){
+    if(numFrames==frames.length)
+      frames = Arrays.copyOf(frames, numFrames*2);
+    Environment frame = frames[numFrames];
+    if(frame==null){
+      frame = new Environment();
+      frames[numFrames] = frame;
+    }
+    numFrames++;
+    frame.setParent(parent);
+    return frame;
   }
 
-  private void processCurrentNode(Delta currentDelta, Environment currentEnv, Stack<ASTNode> currentControlStack){
+  /**
+   * Releases the frames from the given one on, so they can be reused.
+   */
+  private void releaseFrames(int firstFrame){
+    while(numFrames>firstFrame){
+      Environment frame = frames[--numFrames];
+      if(frame!=null)
+        frame.reset();
+    }
+  }
+
+  /**
+   * Takes the frames in use off the frame stack for good: an environment that contains them was captured.
+   */
+  private void escapeFrames(){
+    Arrays.fill(frames, 0, numFrames, null);
+  }
+
+  /**
+   * @return the environment in effect after the node (a different one only if the node begins or ends
+   *         the body of a {@link Let})
+   */
+  private Environment processCurrentNode(Delta currentDelta, Environment currentEnv, Stack<ASTNode> currentControlStack){
     ASTNode node = currentControlStack.pop();
     if(applyBinaryOperation(node))
-      return;
+      return currentEnv;
     else if(applyUnaryOperation(node))
-      return;
+      return currentEnv;
     else{
       switch(node.getType()){
         case IDENTIFIER:
@@ -54,17 +124,31 @@ public class CSEMachine{
           applyGamma(currentDelta, node, currentEnv, currentControlStack);
           break;
         case DELTA:
-          ((Delta)node).setLinkedEnv(currentEnv); //RULE 2
-          valueStack.push(node);
+          valueStack.push(newClosure((Delta)node, capture((Delta)node, currentEnv))); //RULE 2
           break;
+        case APPLY:
+          apply((Application)node, currentControlStack);
+          break;
+        case BIND:
+          return bind((Let)node, currentEnv, currentControlStack);
+        case UNBIND:
+          Environment parentEnv = currentEnv.getParent();
+          releaseFrames(numFrames-1); //the let's own frame: whatever was acquired after it has been released
+          return parentEnv;
+        case FIX:
+          fix((Rec)node, currentEnv);
+          break;
+        case JUMP:
+          return jump((TailCall)node, currentEnv, currentControlStack);
         default:
           // Although we use ASTNodes, a CSEM will only ever see a subset of all possible ASTNodeTypes.
           // These are the types that are NOT standardized away into lambdas and gammas. E.g. types
           // such as LET, WHERE, WITHIN, SIMULTDEF etc will NEVER be encountered by the CSEM
-          valueStack.push(node);
+          valueStack.push(newValue(node));
           break;
       }
     }
+    return currentEnv;
   }
 
   // RULE 6
@@ -79,15 +163,15 @@ public class CSEMachine{
       case LE:
       case GR:
       case GE:
-        binaryArithmeticOp(rator.getType());
+        binaryArithmeticOp(rator.getType(), rator instanceof ProvenOperation);
         return true;
       case EQ:
       case NE:
-        binaryLogicalEqNeOp(rator.getType());
+        binaryLogicalEqNeOp(rator.getType(), rator instanceof ProvenOperation);
         return true;
       case OR:
       case AND:
-        binaryLogicalOrAndOp(rator.getType());
+        binaryLogicalOrAndOp(rator.getType(), rator instanceof ProvenOperation);
         return true;
       case AUG:
         augTuples();
@@ -97,10 +181,10 @@ public class CSEMachine{
     }
   }
 
-  private void binaryArithmeticOp(ASTNodeType type){
+  private void binaryArithmeticOp(ASTNodeType type, boolean proven){
     ASTNode rand1 = valueStack.pop();
     ASTNode rand2 = valueStack.pop();
-    if(rand1.getType()!=ASTNodeType.INTEGER || rand2.getType()!=ASTNodeType.INTEGER)
+    if(!proven && (rand1.getType()!=ASTNodeType.INTEGER || rand2.getType()!=ASTNodeType.INTEGER))
       EvaluationError.printError(rand1.getSourceLineNumber(), "Expected two integers; was given \""+rand1.getValue()+"\", \""+rand2.getValue()+"\"");
 
     ASTNode result = new ASTNode();
@@ -152,10 +236,20 @@ public class CSEMachine{
     valueStack.push(result);
   }
 
-  private void binaryLogicalEqNeOp(ASTNodeType type){
+  private void binaryLogicalEqNeOp(ASTNodeType type, boolean proven){
     ASTNode rand1 = valueStack.pop();
     ASTNode rand2 = valueStack.pop();
 
+    if(proven){ //both integers, both strings or both truthvalues
+      if(rand1.getType()==ASTNodeType.INTEGER)
+        compareIntegers(rand1, rand2, type);
+      else if(rand1.getType()==ASTNodeType.STRING)
+        compareStrings(rand1, rand2, type);
+      else
+        compareTruthValues(rand1, rand2, type);
+      return;
+    }
+
     if(rand1.getType()==ASTNodeType.TRUE || rand1.getType()==ASTNodeType.FALSE){
       if(rand2.getType()!=ASTNodeType.TRUE && rand2.getType()!=ASTNodeType.FALSE)
         EvaluationError.printError(rand1.getSourceLineNumber(), "Cannot compare dissimilar types; was given \""+rand1.getValue()+"\", \""+rand2.getValue()+"\"");
@@ -214,11 +308,11 @@ public class CSEMachine{
         pushTrueNode();
   }
 
-  private void binaryLogicalOrAndOp(ASTNodeType type){
+  private void binaryLogicalOrAndOp(ASTNodeType type, boolean proven){
     ASTNode rand1 = valueStack.pop();
     ASTNode rand2 = valueStack.pop();
 
-    if((rand1.getType()==ASTNodeType.TRUE || rand1.getType()==ASTNodeType.FALSE) &&
+    if(proven || (rand1.getType()==ASTNodeType.TRUE || rand1.getType()==ASTNodeType.FALSE) &&
         (rand2.getType()==ASTNodeType.TRUE || rand2.getType()==ASTNodeType.FALSE)){
       orAndTruthValues(rand1, rand2, type);
       return;
@@ -244,7 +338,7 @@ public class CSEMachine{
 
   private void augTuples(){
     ASTNode rand1 = valueStack.pop();
-    ASTNode rand2 = valueStack.pop();
+    ASTNode rand2 = tupleElement(valueStack.pop());
 
     if(rand1.getType()!=ASTNodeType.TUPLE)
       EvaluationError.printError(rand1.getSourceLineNumber(), "Cannot augment a non-tuple \""+rand1.getValue()+"\"");
@@ -262,23 +356,61 @@ public class CSEMachine{
     valueStack.push(rand1);
   }
 
+  /**
+   * @return a new closure of lambda, linked to env. Every closure of a lambda shares its body: bodies are never
+   *         modified, so a closure need not be copied when it is looked up (see {@link Environment#lookup(String)}).
+   */
+  private Delta newClosure(Delta lambda, Environment env){
+    Delta closure;
+    if(lambda instanceof RecursiveDelta)
+      closure = new RecursiveDelta(((RecursiveDelta)lambda).getRec(), lambda);
+    else{
+      closure = new Delta();
+      closure.shareLambda(lambda);
+    }
+    closure.setLinkedEnv(env);
+    return closure;
+  }
+
+  /**
+   * @return a new node with the type, value and source line number of the given literal (or Y*, or built-in) in a
+   *         body, since built-ins such as ItoS and Stem modify the nodes they are given, and tuples relink theirs
+   */
+  private ASTNode newValue(ASTNode literal){
+    ASTNode value = new ASTNode();
+    value.setType(literal.getType());
+    value.setValue(literal.getValue());
+    value.setSourceLineNumber(literal.getSourceLineNumber());
+    return value;
+  }
+
+  /**
+   * @return value, or if it is a closure, a new closure of the same lambda in the same environment: the elements of
+   *         a tuple are linked as siblings, and a closure may be bound, or in another tuple, as it is
+   */
+  private ASTNode tupleElement(ASTNode value){
+    if(value instanceof Delta)
+      return newClosure((Delta)value, ((Delta)value).getLinkedEnv());
+    return value;
+  }
+
   // RULE 7
   private boolean applyUnaryOperation(ASTNode rator){
     switch(rator.getType()){
       case NOT:
-        not();
+        not(rator instanceof ProvenOperation);
         return true;
       case NEG:
-        neg();
+        neg(rator instanceof ProvenOperation);
         return true;
       default:
         return false;
     }
   }
 
-  private void not(){
+  private void not(boolean proven){
     ASTNode rand = valueStack.pop();
-    if(rand.getType()!=ASTNodeType.TRUE && rand.getType()!=ASTNodeType.FALSE)
+    if(!proven && rand.getType()!=ASTNodeType.TRUE && rand.getType()!=ASTNodeType.FALSE)
       EvaluationError.printError(rand.getSourceLineNumber(), "Expecting a truthvalue; was given \""+rand.getValue()+"\"");
 
     if(rand.getType()==ASTNodeType.TRUE)
@@ -287,9 +419,9 @@ public class CSEMachine{
       pushTrueNode();
   }
 
-  private void neg(){
+  private void neg(boolean proven){
     ASTNode rand = valueStack.pop();
-    if(rand.getType()!=ASTNodeType.INTEGER)
+    if(!proven && rand.getType()!=ASTNodeType.INTEGER)
       EvaluationError.printError(rand.getSourceLineNumber(), "Expecting a truthvalue; was given \""+rand.getValue()+"\"");
 
     ASTNode result = new ASTNode();
@@ -299,6 +431,176 @@ public class CSEMachine{
   }
 
   //RULE 3
+  /**
+   * @return a new environment, linked to parentEnv, that binds the variables of delta to rand
+   */
+  private Environment bindVariables(Delta delta, ASTNode rand, Environment parentEnv){
+    Environment newEnv = acquireFrame(parentEnv);
+    addMappings(delta, rand, newEnv);
+    return newEnv;
+  }
+
+  /**
+   * Binds the variables of delta to rand in env.
+   */
+  private void addMappings(Delta delta, ASTNode rand, Environment env){
+    //RULE 4
+    if(delta.getBoundVars().size()==1){
+      env.addMapping(delta.getBoundVars().get(0), rand);
+    }
+    //RULE 11
+    else{
+      if(rand.getType()!=ASTNodeType.TUPLE)
+        EvaluationError.printError(rand.getSourceLineNumber(), "Expected a tuple; was given \""+rand.getValue()+"\"");
+      
+      for(int i = 0; i < delta.getBoundVars().size(); i++){
+        env.addMapping(delta.getBoundVars().get(i), getNthTupleChild((Tuple)rand, i+1)); //+ 1 coz tuple indexing starts at 1
+      }
+    }
+  }
+
+  /**
+   * Applies the rator on top of the value stack to the rands below it (the first one on top). If the rator is a
+   * chain of enough lambdas (the body of each but the last is just the next one), or the eta of one, the variables
+   * of all of them are bound in one environment, as applying them one by one would have (with nothing in between
+   * to see the environments in the middle), and only the body of the last one is evaluated. Otherwise, the rands
+   * are applied one at a time.
+   */
+  private void apply(Application node, Stack<ASTNode> currentControlStack){
+    int numRands = node.getNumRands();
+    ASTNode rator = valueStack.peek();
+    boolean eta = rator.getType()==ASTNodeType.ETA;
+    Delta firstDelta = eta? ((Eta)rator).getDelta() : rator.getType()==ASTNodeType.DELTA? (Delta)rator : null;
+    int numDeltas = eta? numRands+1 : numRands; //RULE 13 applies the delta of an eta to the eta first
+
+    Delta lastDelta = firstDelta;
+    for(int i = 1; i < numDeltas && lastDelta!=null; i++)
+      lastDelta = nextInChain(lastDelta);
+    if(lastDelta==null){
+      for(int i = 0; i < numRands; i++)
+        currentControlStack.push(GAMMA);
+      return;
+    }
+
+    valueStack.pop();
+    int callFrameBase = numFrames;
+    Environment newEnv = acquireFrame(firstDelta.getLinkedEnv());
+    Delta delta = firstDelta;
+    if(eta){
+      addMappings(delta, rator, newEnv);
+      delta = nextInChain(delta);
+    }
+    for(int i = 0; i < numRands; i++){
+      addMappings(delta, valueStack.pop(), newEnv);
+      if(delta!=lastDelta)
+        delta = nextInChain(delta);
+    }
+    processControlStack(lastDelta, newEnv, callFrameBase);
+  }
+
+  /**
+   * @return the delta that is all there is to the body of delta, or null if there is no such delta
+   */
+  private Delta nextInChain(Delta delta){
+    Stack<ASTNode> body = delta.getBody();
+    if(body.size()!=1 || body.get(0).getType()!=ASTNodeType.DELTA)
+      return null;
+    return (Delta)body.get(0);
+  }
+
+  /**
+   * Binds the variables of a let to the value of its rand (on top of the value stack) and pushes its body,
+   * followed by the end of its body, on to the control stack, in place of applying a lambda.
+   * @return the environment the body is to be evaluated in
+   */
+  private Environment bind(Let let, Environment currentEnv, Stack<ASTNode> currentControlStack){
+    ASTNode rand = valueStack.pop();
+    Environment newEnv = bindVariables(let, rand, currentEnv);
+    currentControlStack.push(END_OF_LET);
+    currentControlStack.addAll(let.getBody());
+    return newEnv;
+  }
+
+  /**
+   * RULE 12 and 13 ahead of time: pushes the closure of the lambda a rec variable is bound to, in an environment
+   * that binds the rec variable to that very closure. The closure stands for the eta RULE 12 would have pushed.
+   * For simultaneous definitions, pushes the tuple of the closures of their lambdas, which all share an
+   * environment that binds each variable to its closure.
+   */
+  private void fix(Rec rec, Environment currentEnv){
+    Environment newEnv = new Environment();
+    newEnv.setParent(capture(rec, currentEnv));
+    List<String> boundVars = rec.getBoundVars();
+    if(boundVars.size()==1){
+      RecursiveDelta closure = new RecursiveDelta(rec, rec.getLambda(0));
+      closure.setLinkedEnv(newEnv);
+      newEnv.addMapping(boundVars.get(0), closure);
+      valueStack.push(closure);
+      return;
+    }
+
+    Tuple group = new Tuple();
+    ASTNode previousElement = null;
+    for(int i = 0; i < boundVars.size(); i++){
+      Delta closure = new Delta();
+      closure.shareLambda(rec.getLambda(i));
+      closure.setLinkedEnv(newEnv);
+      newEnv.addMapping(boundVars.get(i), closure);
+
+      Delta element = new Delta(); //not the bound closure itself, since the elements of a tuple are linked as siblings
+      element.shareLambda(closure);
+      element.setLinkedEnv(newEnv);
+      if(previousElement==null)
+        group.setChild(element);
+      else
+        previousElement.setSibling(element);
+      previousElement = element;
+    }
+    valueStack.push(group);
+  }
+
+  /**
+   * @return an environment, with no parent, that binds the free variables of delta as currentEnv does (those
+   *         currentEnv does not bind are built-ins or undeclared), so a closure of delta keeps nothing else alive
+   *         and finds its variables with a single lookup
+   */
+  private Environment capture(Delta delta, Environment currentEnv){
+    String[] freeVars = delta.getFreeVars();
+    if(freeVars==null){ //not analyzed: the closure keeps the whole environment
+      escapeFrames();
+      return currentEnv;
+    }
+    if(freeVars.length==0)
+      return CLOSED_ENV;
+    Environment capturedEnv = new Environment();
+    for(String freeVar: freeVars){
+      ASTNode value = currentEnv.lookupBound(freeVar);
+      if(value!=null)
+        capturedEnv.addMapping(freeVar, value);
+    }
+    return capturedEnv;
+  }
+
+  /**
+   * Binds the variables of the function bound to the rec variable of a tail call (each lambda in its chain) to the
+   * rands on top of the value stack (the first one on top), in a new environment, and replaces what is left of the
+   * current body (only the ends of lets, the call being in tail position) with the body of the function.
+   * @return the environment the body of the function is to be evaluated in
+   */
+  private Environment jump(TailCall node, Environment currentEnv, Stack<ASTNode> currentControlStack){
+    Delta delta = (Delta)currentEnv.lookup(node.getValue());
+    releaseFrames(frameBase); //the frames of the call (and its lets) are done with
+    Environment newEnv = acquireFrame(delta.getLinkedEnv());
+    addMappings(delta, valueStack.pop(), newEnv);
+    for(Delta nextDelta = nextInChain(delta); nextDelta!=null; nextDelta = nextInChain(delta)){
+      delta = nextDelta;
+      addMappings(delta, valueStack.pop(), newEnv);
+    }
+    currentControlStack.clear();
+    currentControlStack.addAll(delta.getBody());
+    return newEnv;
+  }
+
   private void applyGamma(Delta currentDelta, ASTNode node, Environment currentEnv, Stack<ASTNode> currentControlStack){
     ASTNode rator = valueStack.pop();
     ASTNode rand = valueStack.pop();
@@ -310,24 +612,9 @@ public class CSEMachine{
       //for 'RULE 2' in this file to see where it's done)
       //We construct a new environment here that will contain all the bindings (single or multiple)
       //required by this Delta. This new environment will link back to the environment carried by the Delta.
-      Environment newEnv = new Environment();
-      newEnv.setParent(nextDelta.getLinkedEnv());
-      
-      //RULE 4
-      if(nextDelta.getBoundVars().size()==1){
-        newEnv.addMapping(nextDelta.getBoundVars().get(0), rand);
-      }
-      //RULE 11
-      else{
-        if(rand.getType()!=ASTNodeType.TUPLE)
-          EvaluationError.printError(rand.getSourceLineNumber(), "Expected a tuple; was given \""+rand.getValue()+"\"");
-        
-        for(int i = 0; i < nextDelta.getBoundVars().size(); i++){
-          newEnv.addMapping(nextDelta.getBoundVars().get(i), getNthTupleChild((Tuple)rand, i+1)); //+ 1 coz tuple indexing starts at 1
-        }
-      }
-      
-      processControlStack(nextDelta, newEnv);
+      int callFrameBase = numFrames;
+      Environment newEnv = bindVariables(nextDelta, rand, nextDelta.getLinkedEnv());
+      processControlStack(nextDelta, newEnv, callFrameBase);
       return;
     }
     else if(rator.getType()==ASTNodeType.YSTAR){
@@ -373,7 +660,10 @@ public class CSEMachine{
         checkTypeAndPushTrueOrFalse(rand, ASTNodeType.DUMMY);
         return true;
       case "Isfunction":
-        checkTypeAndPushTrueOrFalse(rand, ASTNodeType.DELTA);
+        if(rand instanceof RecursiveDelta) //stands for an eta, which has never counted as a function
+          pushFalseNode();
+        else
+          checkTypeAndPushTrueOrFalse(rand, ASTNodeType.DELTA);
         return true;
       case "Istuple":
         checkTypeAndPushTrueOrFalse(rand, ASTNodeType.TUPLE);
@@ -535,10 +825,11 @@ public class CSEMachine{
   }
 
   private void handleIdentifiers(ASTNode node, Environment currentEnv){
-    if(currentEnv.lookup(node.getValue())!=null) // RULE 1
-      valueStack.push(currentEnv.lookup(node.getValue()));
+    ASTNode value = currentEnv.lookup(node.getValue());
+    if(value!=null) // RULE 1
+      valueStack.push(value);
     else if(isReservedIdentifier(node.getValue()))
-      valueStack.push(node);
+      valueStack.push(newValue(node));
     else
       EvaluationError.printError(node.getSourceLineNumber(), "Undeclared identifier \""+node.getValue()+"\"");
   }
@@ -555,13 +846,13 @@ public class CSEMachine{
     ASTNode childNode = null, tempNode = null;
     for(int i=0;i<numChildren;++i){
       if(childNode==null)
-        childNode = valueStack.pop();
+        childNode = tupleElement(valueStack.pop());
       else if(tempNode==null){
-        tempNode = valueStack.pop();
+        tempNode = tupleElement(valueStack.pop());
         childNode.setSibling(tempNode);
       }
       else{
-        tempNode.setSibling(valueStack.pop());
+        tempNode.setSibling(tupleElement(valueStack.pop()));
         tempNode = tempNode.getSibling();
       }
     }
@@ -574,7 +865,7 @@ public class CSEMachine{
   private void handleBeta(Beta node, Stack<ASTNode> currentControlStack){
     ASTNode conditionResultNode = valueStack.pop();
 
-    if(conditionResultNode.getType()!=ASTNodeType.TRUE && conditionResultNode.getType()!=ASTNodeType.FALSE)
+    if(!node.isConditionProven() && conditionResultNode.getType()!=ASTNodeType.TRUE && conditionResultNode.getType()!=ASTNodeType.FALSE)
       EvaluationError.printError(conditionResultNode.getSourceLineNumber(), "Expecting a truthvalue; found \""+conditionResultNode.getValue()+"\"");
 
     if(conditionResultNode.getType()==ASTNodeType.TRUE)
@@ -601,7 +892,7 @@ public class CSEMachine{
   }
 
   // Note how this list is different from the one defined in Scanner.java
-  private boolean isReservedIdentifier(String value){
+  public static boolean isReservedIdentifier(String value){
     switch(value){
       case "Isinteger":
       case "Isstring":
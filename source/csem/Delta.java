@@ -3,6 +3,7 @@ package csem;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Stack;
+import java.util.function.Supplier;
 
 import ast.ASTNode;
 import ast.ASTNodeType;
@@ -13,8 +14,10 @@ import ast.ASTNodeType;
  */
 public class Delta extends ASTNode{
   private List<String> boundVars;
+  private String[] freeVars; //see getFreeVars()
   private Environment linkedEnv; //environment in effect when this Delta was pushed on to the value stack
-  private Stack<ASTNode> body;
+  private volatile Stack<ASTNode> body;
+  private Supplier<Stack<ASTNode>> bodyBuilder; //builds the body on first use (see AST.setLazy())
   private int index;
   
   public Delta(){
@@ -44,13 +47,54 @@ public class Delta extends ASTNode{
     this.boundVars = boundVars;
   }
   
+  /**
+   * @return the variables the lambda uses without binding them (see ast.FreeVariableAnalyzer); its closure
+   *         captures only the bindings of these. Null for a {@link Let}, which is not a closure.
+   */
+  public String[] getFreeVars(){
+    return freeVars;
+  }
+
+  public void setFreeVars(String[] freeVars){
+    this.freeVars = freeVars;
+  }
+
+  /**
+   * Builds the body first if it has not been built yet. Safe to call from several threads.
+   */
   public Stack<ASTNode> getBody(){
+    Stack<ASTNode> builtBody = body;
+    if(builtBody!=null)
+      return builtBody;
+    return buildBody();
+  }
+
+  /**
+   * @return true unless the body is yet to be built (see {@link #setBodyBuilder(Supplier)})
+   */
+  boolean isBodyBuilt(){
+    return body!=null;
+  }
+
+  private synchronized Stack<ASTNode> buildBody(){
+    if(body==null && bodyBuilder!=null){
+      body = bodyBuilder.get();
+      bodyBuilder = null;
+    }
     return body;
   }
   
   public void setBody(Stack<ASTNode> body){
     this.body = body;
   }
+
+  /**
+   * Defers building the body until the first {@link #getBody()}.
+   */
+  public synchronized void setBodyBuilder(Supplier<Stack<ASTNode>> bodyBuilder){
+    this.bodyBuilder = bodyBuilder;
+    body = null;
+  }
   
   public int getIndex(){
     return index;
@@ -60,6 +104,20 @@ public class Delta extends ASTNode{
     this.index = index;
   }
 
+  /**
+   * Makes this a closure of the same lambda as the given delta: the same index, bound variables and (shared) body.
+   */
+  void shareLambda(Delta lambda){
+    index = lambda.index;
+    boundVars = lambda.boundVars;
+    freeVars = lambda.freeVars;
+    setSourceLineNumber(lambda.getSourceLineNumber());
+    if(lambda.isBodyBuilt())
+      body = lambda.getBody();
+    else
+      setBodyBuilder(lambda::getBody); //built (once, for both) when either needs it
+  }
+
   public Environment getLinkedEnv(){
     return linkedEnv;
   }
@@ -27,21 +27,36 @@ public class Environment{
    * 
    * @param key key the mapping of which to find
    * @return ASTNode that corresponds to the mapping of the key passed in as an argument
-   *         or null if no mapping was found
+   *         or null if no mapping was found. A copy of it, unless it is a closure: the evaluation may
+   *         modify other values, but not closures (bodies are shared, and tuples link copies of closures).
    */
   public ASTNode lookup(String key){
-    ASTNode retValue = null;
-    Map<String, ASTNode> map = nameValueMap;
+    ASTNode retValue = lookupBound(key); //a loop: lets may nest the environments very deeply
     
-    retValue = map.get(key);
-    
-    if(retValue!=null)
+    if(retValue!=null && !(retValue instanceof Delta))
       return retValue.accept(new NodeCopier());
-    
-    if(parent!=null)
-      return parent.lookup(key);
     else
-      return null;
+      return retValue;
+  }
+  
+  /**
+   * Like {@link #lookup(String)}, but returns the node that is bound, not a copy of it.
+   */
+  ASTNode lookupBound(String key){
+    for(Environment env = this; env!=null; env = env.parent){
+      ASTNode value = env.nameValueMap.get(key);
+      if(value!=null)
+        return value;
+    }
+    return null;
+  }
+  
+  /**
+   * Empties this environment and unlinks it, so it can be reused (see CSEMachine's frame stack).
+   */
+  void reset(){
+    parent = null;
+    nameValueMap.clear();
   }
   
   public void addMapping(String key, ASTNode value){
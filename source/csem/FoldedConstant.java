@@ -0,0 +1,17 @@
+package csem;
+
+import ast.ASTNode;
+
+/**
+ * A literal that {@link ast.ConstantFolder} put into the tree in place of an expression (or of an
+ * identifier bound to a literal), or that {@link ast.AST} put into the control structure of a
+ * short-circuit & or or. Like any other literal, the CSE machine pushes a new node with its
+ * type and value, not this one.
+ */
+public class FoldedConstant extends ASTNode{
+
+  public FoldedConstant accept(NodeCopier nodeCopier){
+    return nodeCopier.copy(this);
+  }
+
+}
@@ -0,0 +1,24 @@
+package csem;
+
+import ast.ASTNodeType;
+
+/**
+ * Used to evaluate lets. 'gamma (lambda x. B) E', which applies a lambda right away, becomes
+ * 'Let E' on the control stack, where the Let has the bound variables and the body (B) of the lambda.
+ * Evaluating the Let binds its variables to the value of E in a new environment, as applying the
+ * lambda would, and then evaluates B on the same control stack in that environment. So a let needs
+ * neither a closure nor a call of its own.
+ *
+ * <p>A Let is numbered and built (lazily, too) just like the delta it stands for.
+ */
+public class Let extends Delta{
+
+  public Let(){
+    setType(ASTNodeType.BIND);
+  }
+
+  @Override
+  public Let accept(NodeCopier nodeCopier){
+    return nodeCopier.copy(this);
+  }
+}
@@ -1,7 +1,6 @@
 package csem;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.ArrayDeque;
 import java.util.Stack;
 
 import ast.ASTNode;
@@ -13,31 +12,44 @@ import ast.ASTNode;
  * 
  * <p>Uses the Visitor pattern to avoid instanceOf code smell.
  * 
+ * <p>Each copy method only makes a shallow copy of its node. The children and siblings of the
+ * copies are hooked up from a worklist that the outermost copy call drains, so copying a long
+ * tuple or a deeply nested closure does not use up the Java stack.
+ * 
  * @author Raj
  */
 public class NodeCopier{
+  //copies whose child and sibling still need to be copied, along with the nodes they are copies of
+  //(made on first use: most copies are of single values, which have neither)
+  private ArrayDeque<ASTNode> pendingOriginals;
+  private ArrayDeque<ASTNode> pendingCopies;
+  private boolean draining;
+  private static long numCopies; //see getNumCopies()
+  
+  /**
+   * @return how many nodes have been copied so far (by any NodeCopier). Only the CSE machine copies nodes, on
+   *         a single thread, so this is not synchronized.
+   */
+  public static long getNumCopies(){
+    return numCopies;
+  }
   
   public ASTNode copy(ASTNode astNode){
+    boolean outermost = enter();
     ASTNode copy = new ASTNode();
-    if(astNode.getChild()!=null)
-      copy.setChild(astNode.getChild().accept(this));
-    if(astNode.getSibling()!=null)
-      copy.setSibling(astNode.getSibling().accept(this));
     copy.setType(astNode.getType());
     copy.setValue(astNode.getValue());
     copy.setSourceLineNumber(astNode.getSourceLineNumber());
-    return copy;
+    return leave(outermost, astNode, copy);
   }
   
   public Beta copy(Beta beta){
+    boolean outermost = enter();
     Beta copy = new Beta();
-    if(beta.getChild()!=null)
-      copy.setChild(beta.getChild().accept(this));
-    if(beta.getSibling()!=null)
-      copy.setSibling(beta.getSibling().accept(this));
     copy.setType(beta.getType());
     copy.setValue(beta.getValue());
     copy.setSourceLineNumber(beta.getSourceLineNumber());
+    copy.setConditionProven(beta.isConditionProven());
     
     Stack<ASTNode> thenBodyCopy = new Stack<ASTNode>();
     for(ASTNode thenBodyElement: beta.getThenBody()){
@@ -51,59 +63,130 @@ public class NodeCopier{
     }
     copy.setElseBody(elseBodyCopy);
     
-    return copy;
+    return leave(outermost, beta, copy);
   }
   
   public Eta copy(Eta eta){
+    boolean outermost = enter();
     Eta copy = new Eta();
-    if(eta.getChild()!=null)
-      copy.setChild(eta.getChild().accept(this));
-    if(eta.getSibling()!=null)
-      copy.setSibling(eta.getSibling().accept(this));
     copy.setType(eta.getType());
-    copy.setValue(eta.getValue());
     copy.setSourceLineNumber(eta.getSourceLineNumber());
     
     copy.setDelta(eta.getDelta().accept(this));
     
-    return copy;
+    return leave(outermost, eta, copy);
   }
   
   public Delta copy(Delta delta){
-    Delta copy = new Delta();
-    if(delta.getChild()!=null)
-      copy.setChild(delta.getChild().accept(this));
-    if(delta.getSibling()!=null)
-      copy.setSibling(delta.getSibling().accept(this));
+    return copy(delta, new Delta());
+  }
+  
+  public Let copy(Let let){
+    return copy(let, new Let());
+  }
+  
+  public Rec copy(Rec rec){
+    return copy(rec, new Rec());
+  }
+  
+  public RecursiveDelta copy(RecursiveDelta delta){
+    RecursiveDelta copy = new RecursiveDelta();
+    copy.setRec(delta.getRec());
+    return copy(delta, copy);
+  }
+  
+  private <T extends Delta> T copy(Delta delta, T copy){
+    boolean outermost = enter();
     copy.setType(delta.getType());
-    copy.setValue(delta.getValue());
-    copy.setIndex(delta.getIndex());
-    copy.setSourceLineNumber(delta.getSourceLineNumber());
-    
-    Stack<ASTNode> bodyCopy = new Stack<ASTNode>();
-    for(ASTNode bodyElement: delta.getBody()){
-      bodyCopy.add(bodyElement.accept(this));
-    }
-    copy.setBody(bodyCopy);
-    
-    List<String> boundVarsCopy = new ArrayList<String>();
-    boundVarsCopy.addAll(delta.getBoundVars());
-    copy.setBoundVars(boundVarsCopy);
-    
+    copy.shareLambda(delta); //bodies are never modified, so the copy shares the body (built or not)
     copy.setLinkedEnv(delta.getLinkedEnv());
     
-    return copy;
+    return leave(outermost, delta, copy);
   }
   
+  public FoldedConstant copy(FoldedConstant constant){
+    boolean outermost = enter();
+    FoldedConstant copy = new FoldedConstant();
+    copy.setType(constant.getType());
+    copy.setValue(constant.getValue());
+    copy.setSourceLineNumber(constant.getSourceLineNumber());
+    return leave(outermost, constant, copy);
+  }
+
+  public ProvenOperation copy(ProvenOperation operation){
+    boolean outermost = enter();
+    ProvenOperation copy = new ProvenOperation();
+    copy.setType(operation.getType());
+    copy.setValue(operation.getValue());
+    copy.setSourceLineNumber(operation.getSourceLineNumber());
+    return leave(outermost, operation, copy);
+  }
+
+  public Application copy(Application application){
+    boolean outermost = enter();
+    Application copy = new Application();
+    copy.setValue(application.getValue());
+    copy.setSourceLineNumber(application.getSourceLineNumber());
+    return leave(outermost, application, copy);
+  }
+
+  public TailCall copy(TailCall tailCall){
+    boolean outermost = enter();
+    TailCall copy = new TailCall(tailCall.getValue());
+    copy.setSourceLineNumber(tailCall.getSourceLineNumber());
+    return leave(outermost, tailCall, copy);
+  }
+
   public Tuple copy(Tuple tuple){
+    boolean outermost = enter();
     Tuple copy = new Tuple();
-    if(tuple.getChild()!=null)
-      copy.setChild(tuple.getChild().accept(this));
-    if(tuple.getSibling()!=null)
-      copy.setSibling(tuple.getSibling().accept(this));
     copy.setType(tuple.getType());
-    copy.setValue(tuple.getValue());
     copy.setSourceLineNumber(tuple.getSourceLineNumber());
+    return leave(outermost, tuple, copy);
+  }
+  
+  /**
+   * @return true if this is the outermost copy call (the one that has to drain the worklist)
+   */
+  private boolean enter(){
+    boolean outermost = !draining;
+    draining = true;
+    return outermost;
+  }
+  
+  private <T extends ASTNode> T leave(boolean outermost, ASTNode original, T copy){
+    numCopies++;
+    if(original.getChild()!=null || original.getSibling()!=null){
+      if(pendingOriginals==null){
+        pendingOriginals = new ArrayDeque<ASTNode>();
+        pendingCopies = new ArrayDeque<ASTNode>();
+      }
+      pendingOriginals.push(original);
+      pendingCopies.push(copy);
+    }
+    if(outermost)
+      drain();
     return copy;
   }
+  
+  private void drain(){
+    if(pendingOriginals==null){
+      draining = false;
+      return;
+    }
+    try{
+      while(!pendingOriginals.isEmpty()){
+        ASTNode original = pendingOriginals.pop();
+        ASTNode copy = pendingCopies.pop();
+        if(original.getChild()!=null)
+          copy.setChild(original.getChild().accept(this));
+        if(original.getSibling()!=null)
+          copy.setSibling(original.getSibling().accept(this));
+      }
+    }finally{
+      pendingOriginals.clear();
+      pendingCopies.clear();
+      draining = false;
+    }
+  }
 }
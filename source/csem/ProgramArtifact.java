@@ -0,0 +1,320 @@
+package csem;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import ast.ASTNode;
+import ast.ASTNodeType;
+
+/**
+ * A compiled program: what {@link ast.AST#createDeltas()} produces, saved to a file so that later
+ * runs can skip scanning, parsing, standardizing and building deltas altogether.
+ *
+ * <p>The CSE machine does not only look at the control structures, but also at the child and
+ * sibling links of the nodes in them (e.g., to count the elements of a tau). So the artifact
+ * holds the whole graph of nodes the control structures are made of, each node exactly once, and
+ * loading it gives back a graph that is linked up in exactly the same way.
+ *
+ * <p>Layout (all ints big-endian):
+ * <pre>
+ * 'R' 'P' 'A' 'C', int version, 32 bytes SHA-256 of the source, int options, int root (node id of the root delta)
+ * int numValues, then each value: int length, UTF-8 bytes
+ * int numNodes, then each node: byte kind (NODE, BETA, DELTA, FOLDED_CONSTANT, LET, APPLICATION, REC, TAIL_CALL,
+ *     PROVEN_OPERATION, PROVEN_BETA), byte type (ASTNodeType ordinal),
+ *     int value, int sourceLineNumber, int child, int sibling (-1 for none)
+ * then, for each BETA, PROVEN_BETA, DELTA, LET and REC in node order:
+ *     BETA or PROVEN_BETA: int thenLength, node ids, int elseLength, node ids
+ *     DELTA, LET or REC: int index, int numBoundVars, value ids (-1 for none),
+ *         int numFreeVars (-1 for a LET), value ids, int bodyLength, node ids
+ * int CRC-32 of everything before it
+ * </pre>
+ */
+public class ProgramArtifact{
+  public static final int VERSION = 9;
+  private static final byte[] MAGIC = {'R', 'P', 'A', 'C'};
+  private static final int HASH_LENGTH = 32;
+  private static final byte NODE = 0;
+  private static final byte BETA = 1;
+  private static final byte DELTA = 2;
+  private static final byte FOLDED_CONSTANT = 3;
+  private static final byte LET = 4;
+  private static final byte APPLICATION = 5;
+  private static final byte REC = 6;
+  private static final byte TAIL_CALL = 7;
+  private static final byte PROVEN_OPERATION = 8;
+  private static final byte PROVEN_BETA = 9;
+  private static final ASTNodeType[] nodeTypes = ASTNodeType.values();
+
+  /**
+   * @return SHA-256 of the file's contents
+   */
+  public static byte[] hashSource(Path sourceFile) throws IOException{
+    MessageDigest digest;
+    try{
+      digest = MessageDigest.getInstance("SHA-256");
+    }catch(NoSuchAlgorithmException e){
+      throw new IllegalStateException(e); //every JVM has SHA-256
+    }
+    try(FileChannel channel = FileChannel.open(sourceFile, StandardOpenOption.READ)){
+      digest.update(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+    return digest.digest();
+  }
+
+  /**
+   * Writes the control structures reachable from rootDelta (which must not have been evaluated yet).
+   * @param options how the program was compiled (e.g. which optimizations ran), as flags of the caller's choosing
+   */
+  public static void write(Path artifactFile, Delta rootDelta, byte[] sourceHash, int options) throws IOException{
+    //number every node reachable from the root delta
+    Map<ASTNode, Integer> nodeIds = new IdentityHashMap<ASTNode, Integer>();
+    List<ASTNode> nodes = new ArrayList<ASTNode>();
+    Stack<ASTNode> pending = new Stack<ASTNode>();
+    pending.push(rootDelta);
+    while(!pending.isEmpty()){
+      ASTNode node = pending.pop();
+      if(node==null || nodeIds.containsKey(node))
+        continue;
+      nodeIds.put(node, nodes.size());
+      nodes.add(node);
+      pending.push(node.getSibling());
+      pending.push(node.getChild());
+      if(node instanceof Delta)
+        pending.addAll(((Delta)node).getBody());
+      else if(node.getType()==ASTNodeType.BETA){
+        pending.addAll(((Beta)node).getThenBody());
+        pending.addAll(((Beta)node).getElseBody());
+      }
+    }
+
+    Map<String, Integer> valueIds = new HashMap<String, Integer>();
+    List<String> values = new ArrayList<String>();
+    for(ASTNode node: nodes){
+      if(node instanceof Delta){
+        for(String boundVar: ((Delta)node).getBoundVars())
+          valueId(boundVar, valueIds, values);
+        if(((Delta)node).getFreeVars()!=null){
+          for(String freeVar: ((Delta)node).getFreeVars())
+            valueId(freeVar, valueIds, values);
+        }
+      }
+      else if(node.getType()!=ASTNodeType.BETA)
+        valueId(node.getValue(), valueIds, values);
+    }
+
+    CRC32 checksum = new CRC32();
+    try(DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(artifactFile.toFile()), 1<<16), checksum))){
+      out.write(MAGIC);
+      out.writeInt(VERSION);
+      out.write(sourceHash);
+      out.writeInt(options);
+      out.writeInt(nodeIds.get(rootDelta));
+
+      out.writeInt(values.size());
+      for(String value: values){
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+      }
+
+      out.writeInt(nodes.size());
+      for(ASTNode node: nodes){
+        boolean isDelta = node instanceof Delta, isBeta = node.getType()==ASTNodeType.BETA;
+        out.writeByte(node instanceof Let? LET : node instanceof Rec? REC : isDelta? DELTA : isBeta? (((Beta)node).isConditionProven()? PROVEN_BETA : BETA) :
+                      node instanceof FoldedConstant? FOLDED_CONSTANT : node instanceof Application? APPLICATION :
+                      node instanceof TailCall? TAIL_CALL : node instanceof ProvenOperation? PROVEN_OPERATION : NODE);
+        out.writeByte(node.getType().ordinal());
+        out.writeInt(isDelta || isBeta? -1 : valueId(node.getValue(), valueIds, values));
+        out.writeInt(node.getSourceLineNumber());
+        out.writeInt(node.getChild()==null? -1 : nodeIds.get(node.getChild()));
+        out.writeInt(node.getSibling()==null? -1 : nodeIds.get(node.getSibling()));
+      }
+
+      for(ASTNode node: nodes){
+        if(node instanceof Delta){
+          Delta delta = (Delta)node;
+          out.writeInt(delta.getIndex());
+          out.writeInt(delta.getBoundVars().size());
+          for(String boundVar: delta.getBoundVars())
+            out.writeInt(valueId(boundVar, valueIds, values));
+          String[] freeVars = delta.getFreeVars();
+          out.writeInt(freeVars==null? -1 : freeVars.length);
+          if(freeVars!=null){
+            for(String freeVar: freeVars)
+              out.writeInt(valueId(freeVar, valueIds, values));
+          }
+          writeBody(out, delta.getBody(), nodeIds);
+        }
+        else if(node.getType()==ASTNodeType.BETA){
+          writeBody(out, ((Beta)node).getThenBody(), nodeIds);
+          writeBody(out, ((Beta)node).getElseBody(), nodeIds);
+        }
+      }
+      out.writeInt((int)checksum.getValue());
+    }
+  }
+
+  private static int valueId(String value, Map<String, Integer> valueIds, List<String> values){
+    if(value==null)
+      return -1;
+    Integer id = valueIds.get(value);
+    if(id==null){
+      id = values.size();
+      values.add(value);
+      valueIds.put(value, id);
+    }
+    return id;
+  }
+
+  private static void writeBody(DataOutputStream out, Stack<ASTNode> body, Map<ASTNode, Integer> nodeIds) throws IOException{
+    out.writeInt(body.size());
+    for(ASTNode bodyElement: body)
+      out.writeInt(nodeIds.get(bodyElement));
+  }
+
+  /**
+   * Memory-maps an artifact and rebuilds the control structures in it.
+   * @param sourceHash hash of the program's source as it is now (see {@link #hashSource(Path)})
+   * @param options how the program is to be compiled, as passed to {@link #write(Path, Delta, byte[], int)}
+   * @return the root delta; null if there is no artifact, it was written by a different version,
+   *         it was compiled from a different source or with different options (i.e., it is stale),
+   *         or it is truncated or corrupt
+   */
+  public static Delta load(Path artifactFile, byte[] sourceHash, int options) throws IOException{
+    if(!Files.isRegularFile(artifactFile))
+      return null;
+    MappedByteBuffer in;
+    try(FileChannel channel = FileChannel.open(artifactFile, StandardOpenOption.READ)){
+      if(channel.size()<MAGIC.length+4+HASH_LENGTH+4+4+4)
+        return null;
+      in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+
+    byte[] magic = new byte[MAGIC.length];
+    in.get(magic);
+    if(!Arrays.equals(magic, MAGIC) || in.getInt()!=VERSION)
+      return null;
+    byte[] hash = new byte[HASH_LENGTH];
+    in.get(hash);
+    if(!Arrays.equals(hash, sourceHash) || in.getInt()!=options)
+      return null;
+    CRC32 checksum = new CRC32();
+    int checksumPosition = in.limit()-4;
+    checksum.update(in.duplicate().position(0).limit(checksumPosition));
+    if((int)checksum.getValue()!=in.getInt(checksumPosition))
+      return null;
+    in.limit(checksumPosition);
+    try{
+      return readNodes(in);
+    }catch(BufferUnderflowException | IndexOutOfBoundsException | ClassCastException e){ //truncated or corrupt
+      return null;
+    }
+  }
+
+  /**
+   * Reads everything after the header. Counts are checked against what is left of the file, so a corrupt one
+   * cannot make us allocate huge arrays; other inconsistencies (e.g., a node id out of range) surface as
+   * runtime exceptions.
+   * @return the root delta
+   */
+  private static Delta readNodes(MappedByteBuffer in){
+    int root = in.getInt();
+
+    String[] values = new String[checkCount(in.getInt(), in, 4)];
+    for(int i = 0; i < values.length; i++){
+      byte[] bytes = new byte[checkCount(in.getInt(), in, 1)];
+      in.get(bytes);
+      values[i] = new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    ASTNode[] nodes = new ASTNode[checkCount(in.getInt(), in, 18)];
+    int[] children = new int[nodes.length];
+    int[] siblings = new int[nodes.length];
+    for(int i = 0; i < nodes.length; i++){
+      byte kind = in.get();
+      ASTNodeType type = nodeTypes[in.get()];
+      int value = in.getInt();
+      ASTNode node = kind==DELTA? new Delta() : kind==LET? new Let() : kind==REC? new Rec() : kind==BETA || kind==PROVEN_BETA? new Beta() : kind==FOLDED_CONSTANT? new FoldedConstant() :
+                     kind==APPLICATION? new Application() : kind==TAIL_CALL? new TailCall() :
+                     kind==PROVEN_OPERATION? new ProvenOperation() : new ASTNode();
+      node.setType(type);
+      if(kind==PROVEN_BETA)
+        ((Beta)node).setConditionProven(true);
+      if(value!=-1)
+        node.setValue(values[value]);
+      node.setSourceLineNumber(in.getInt());
+      children[i] = in.getInt();
+      siblings[i] = in.getInt();
+      nodes[i] = node;
+    }
+
+    for(int i = 0; i < nodes.length; i++){
+      if(children[i]!=-1)
+        nodes[i].setChild(nodes[children[i]]);
+      if(siblings[i]!=-1)
+        nodes[i].setSibling(nodes[siblings[i]]);
+      if(nodes[i] instanceof Delta){
+        Delta delta = (Delta)nodes[i];
+        delta.setIndex(in.getInt());
+        int numBoundVars = checkCount(in.getInt(), in, 4);
+        for(int j = 0; j < numBoundVars; j++){
+          int boundVar = in.getInt();
+          delta.addBoundVars(boundVar==-1? null : values[boundVar]);
+        }
+        int numFreeVars = in.getInt();
+        if(numFreeVars!=-1){
+          String[] freeVars = new String[checkCount(numFreeVars, in, 4)];
+          for(int j = 0; j < numFreeVars; j++)
+            freeVars[j] = values[in.getInt()];
+          delta.setFreeVars(freeVars);
+        }
+        delta.setBody(readBody(in, nodes));
+      }
+      else if(nodes[i].getType()==ASTNodeType.BETA){
+        ((Beta)nodes[i]).setThenBody(readBody(in, nodes));
+        ((Beta)nodes[i]).setElseBody(readBody(in, nodes));
+      }
+    }
+    return (Delta)nodes[root];
+  }
+
+  private static Stack<ASTNode> readBody(MappedByteBuffer in, ASTNode[] nodes){
+    Stack<ASTNode> body = new Stack<ASTNode>();
+    int length = checkCount(in.getInt(), in, 4);
+    body.ensureCapacity(length);
+    for(int i = 0; i < length; i++)
+      body.add(nodes[in.getInt()]);
+    return body;
+  }
+
+  /**
+   * @param bytesEach the least number of bytes each of the items counted takes up
+   * @return count
+   * @throws BufferUnderflowException if count is negative or there are not enough bytes left for that many items
+   */
+  private static int checkCount(int count, MappedByteBuffer in, int bytesEach){
+    if(count<0 || count>in.remaining()/bytesEach)
+      throw new BufferUnderflowException();
+    return count;
+  }
+}
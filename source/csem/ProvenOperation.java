@@ -0,0 +1,15 @@
+package csem;
+
+import ast.ASTNode;
+
+/**
+ * An operator or conditional whose operands {@link ast.TypeInferencer} proved to have the types it needs,
+ * so the CSE machine does not check them (for a conditional, see {@link Beta#isConditionProven()}).
+ */
+public class ProvenOperation extends ASTNode{
+
+  public ProvenOperation accept(NodeCopier nodeCopier){
+    return nodeCopier.copy(this);
+  }
+
+}
@@ -0,0 +1,41 @@
+package csem;
+
+import java.util.Stack;
+
+import ast.ASTNode;
+import ast.ASTNodeType;
+
+/**
+ * Used to evaluate rec definitions. 'gamma Y* (lambda f. lambda x. B)' in the standardized tree
+ * becomes a Rec on the control stack, where the Rec stands for the delta of 'lambda f' (whose
+ * body is just the delta of 'lambda x'). Evaluating the Rec pushes a {@link RecursiveDelta} for
+ * 'lambda x' whose environment binds f to that closure itself, so a recursive call is applied like
+ * any other, with no eta to unroll (RULE 12 and 13).
+ *
+ * <p>Simultaneous definitions, 'gamma Y* (lambda (f, g). tau (lambda x. B) (lambda y. C))', become a
+ * Rec as well. Its body is the tau followed by the deltas of the lambdas, and evaluating it pushes a
+ * tuple of closures that share one environment, which binds f and g to them. RULE 11 then binds f and
+ * g to the elements of that tuple once, rather than RULE 12 making an eta that is never a tuple.
+ *
+ * <p>Y* applied to anything else (e.g., to a lambda whose body is not a lambda) is left to RULE 12.
+ * A Rec is numbered and built (lazily, too) just like the delta it stands for.
+ */
+public class Rec extends Delta{
+
+  public Rec(){
+    setType(ASTNodeType.FIX);
+  }
+
+  /**
+   * @return the delta of the lambda the i-th rec variable is bound to
+   */
+  public Delta getLambda(int i){
+    Stack<ASTNode> body = getBody();
+    return (Delta)body.get(body.size()-getBoundVars().size()+i); //the lambdas of simultaneous definitions follow their tau
+  }
+
+  @Override
+  public Rec accept(NodeCopier nodeCopier){
+    return nodeCopier.copy(this);
+  }
+}
@@ -0,0 +1,38 @@
+package csem;
+
+/**
+ * The closure a {@link Rec} evaluates to: a lambda closure whose environment binds the rec variable
+ * to the closure itself. It shows up (e.g., when printed) as the eta RULE 12 would have made.
+ */
+public class RecursiveDelta extends Delta{
+  private Rec rec;
+
+  public RecursiveDelta(){
+  }
+
+  /**
+   * @param lambda the delta of the lambda the rec variable of rec is bound to; the new closure shares its body
+   */
+  public RecursiveDelta(Rec rec, Delta lambda){
+    this.rec = rec;
+    shareLambda(lambda);
+  }
+
+  @Override
+  public RecursiveDelta accept(NodeCopier nodeCopier){
+    return nodeCopier.copy(this);
+  }
+
+  @Override
+  public String getValue(){
+    return "[eta closure: "+rec.getBoundVars().get(0)+": "+rec.getIndex()+"]";
+  }
+
+  public Rec getRec(){
+    return rec;
+  }
+
+  public void setRec(Rec rec){
+    this.rec = rec;
+  }
+}
@@ -0,0 +1,31 @@
+package csem;
+
+import ast.ASTNode;
+import ast.ASTNodeType;
+
+/**
+ * Used to evaluate self tail calls. In the body of a function bound by a rec definition,
+ * 'f a1 ... an' in tail position (f being the rec variable, applied to as many rands as the
+ * function has lambdas) becomes 'TailCall a1 ... an' on the control stack. The rands are evaluated
+ * in the same order as before; then, rather than calling the function, the machine binds its
+ * variables to them in a new environment and goes back to the start of its body on the same control
+ * stack, since all that would be left of the current body is the ends of lets. So such a loop needs
+ * neither Java stack nor environments that stay reachable from one iteration to the next.
+ *
+ * <p>The value of the node is the name of the rec variable.
+ */
+public class TailCall extends ASTNode{
+
+  public TailCall(){
+    setType(ASTNodeType.JUMP);
+  }
+
+  public TailCall(String name){
+    this();
+    setValue(name);
+  }
+
+  public TailCall accept(NodeCopier nodeCopier){
+    return nodeCopier.copy(this);
+  }
+}
@@ -0,0 +1,108 @@
+package driver;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+import ast.AST;
+import parser.Parser;
+import scanner.ProgramSource;
+import scanner.Scanner;
+
+/**
+ * Times the front end (parse, standardize, build deltas, print the tree) on generated programs of
+ * growing size, to check that every pass scales linearly and none of them runs out of Java stack:
+ * long aug chains, long + chains and long chains of nested lets make deep trees, big tuples make wide ones. The printed form of
+ * a tree of depth d has d dots in front of its deepest line, so printing is only timed for the
+ * wide trees (for the deep ones, the output itself grows quadratically).
+ * <pre>
+ * java driver.Benchmark [MAX_NODES]
+ * </pre>
+ */
+public class Benchmark{
+  private static final int DEFAULT_MAX_NODES = 4000000;
+  private static final int MIN_NODES = 15625;
+
+  public static void main(String[] args){
+    int maxNodes = args.length>0? Integer.parseInt(args[0]) : DEFAULT_MAX_NODES;
+    System.out.printf("%-10s %10s %12s %12s %12s %12s%n", "program", "nodes", "parse", "standardize", "deltas", "print");
+    System.out.printf("%-10s %10s %12s %12s %12s %12s%n", "", "", "ns/node", "ns/node", "ns/node", "ns/node");
+    for(int n = MIN_NODES; n <= maxNodes; n *= 4){
+      run("aug", augChain(n), false);
+      run("tuple", tuple(n), true);
+      run("plus", plusChain(n), false);
+      run("let", letChain(n), false);
+    }
+  }
+
+  private static void run(String name, String program, boolean timePrint){
+    long start = System.nanoTime();
+    AST ast = new Parser(new Scanner(ProgramSource.fromCharSequence(program))).buildAST();
+    long parsed = System.nanoTime();
+    ast.standardize();
+    long standardized = System.nanoTime();
+    ast.createDeltas();
+    long deltasCreated = System.nanoTime();
+
+    int nodes = ast.size();
+    if(!timePrint){
+      System.out.printf("%-10s %10d %12.1f %12.1f %12.1f %12s%n", name, nodes,
+          (double)(parsed-start)/nodes, (double)(standardized-parsed)/nodes,
+          (double)(deltasCreated-standardized)/nodes, "-");
+      return;
+    }
+
+    PrintStream out = System.out;
+    System.setOut(new PrintStream(new OutputStream(){
+      @Override
+      public void write(int b){
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len){
+      }
+    }));
+    try{
+      ast.print();
+    }finally{
+      System.setOut(out);
+    }
+    long printed = System.nanoTime();
+
+    System.out.printf("%-10s %10d %12.1f %12.1f %12.1f %12.1f%n", name, nodes,
+        (double)(parsed-start)/nodes, (double)(standardized-parsed)/nodes,
+        (double)(deltasCreated-standardized)/nodes, (double)(printed-deltasCreated)/nodes);
+  }
+
+  //Print (nil aug 1 aug 2 ... aug n)
+  private static String augChain(int n){
+    StringBuilder program = new StringBuilder("Print (nil");
+    for(int i = 1; i <= n/2; i++)
+      program.append(" aug ").append(i);
+    return program.append(")\n").toString();
+  }
+
+  //Print (1, 2, ..., n)
+  private static String tuple(int n){
+    StringBuilder program = new StringBuilder("Print (1");
+    for(int i = 2; i <= n; i++)
+      program.append(", ").append(i);
+    return program.append(")\n").toString();
+  }
+
+  //Print (1 + 2 + ... + n)
+  private static String plusChain(int n){
+    StringBuilder program = new StringBuilder("Print (1");
+    for(int i = 2; i <= n/2; i++)
+      program.append(" + ").append(i);
+    return program.append(")\n").toString();
+  }
+
+  //let x0 = 0 in let x1 = x0 + 1 in ... in Print xn
+  private static String letChain(int n){
+    StringBuilder program = new StringBuilder("let x0 = 0 in");
+    int i = 1;
+    for(; i <= n/6; i++)
+      program.append(" let x").append(i).append(" = x").append(i-1).append(" + 1 in");
+    return program.append(" Print x").append(i-1).append("\n").toString();
+  }
+}
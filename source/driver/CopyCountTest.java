@@ -0,0 +1,58 @@
+package driver;
+
+import csem.CSEMachine;
+import csem.NodeCopier;
+import scanner.ProgramSource;
+
+/**
+ * Checks that a recursive call costs a fixed number of node copies, whatever the size of the function's
+ * body: the values of its parameters are copied when they are looked up, but closures (and so the
+ * function itself, on every recursive reference) and bodies are not. Runs the same recursive function
+ * with bodies of growing size, and depths of recursion n and 2n, and counts the nodes NodeCopier copies
+ * for the extra n calls. Exits with status 1 if that is not the same for every body size, or more than
+ * the three lookups of the parameter per call make.
+ * <pre>
+ * java driver.CopyCountTest
+ * </pre>
+ */
+public class CopyCountTest{
+  private static final int DEPTH = 500;
+  private static final int MAX_COPIES_PER_CALL = 3; //n eq 0, n ls 0 and n-1
+
+  public static void main(String[] args){
+    System.out.printf("%-10s %12s%n", "padding", "copies/call");
+    long expected = -1;
+    boolean failed = false;
+    for(int padding = 0; padding <= 1000; padding = padding==0? 10 : padding*10){
+      long perCall = (copies(padding, 2*DEPTH)-copies(padding, DEPTH))/DEPTH;
+      System.out.printf("%-10d %12d%n", padding, perCall);
+      if(expected==-1)
+        expected = perCall;
+      if(perCall!=expected || perCall>MAX_COPIES_PER_CALL)
+        failed = true;
+    }
+    if(failed){
+      System.out.println("FAILED: the copies made per call depend on the size of the body");
+      System.exit(1);
+    }
+    System.out.println("OK");
+  }
+
+  /**
+   * @return the nodes copied while evaluating a recursive function with depth calls, with a branch of padding
+   *         additions (never taken) in its body
+   */
+  private static long copies(int padding, int depth){
+    long before = NodeCopier.getNumCopies();
+    new CSEMachine(P2.buildStandardizedAST(ProgramSource.fromCharSequence(program(padding, depth)))).evaluateProgram();
+    return NodeCopier.getNumCopies()-before;
+  }
+
+  //let rec f n = n eq 0 -> 0 | n ls 0 -> (fn x. x + 1 + ... + 1) n | 1 + f (n-1) in f depth
+  private static String program(int padding, int depth){
+    StringBuilder program = new StringBuilder("let rec f n = n eq 0 -> 0 | n ls 0 -> (fn x. x");
+    for(int i = 0; i < padding; i++)
+      program.append(" + 1");
+    return program.append(") n | 1 + f (n-1) in f ").append(depth).append("\n").toString();
+  }
+}
@@ -9,6 +9,7 @@ import java.io.InputStreamReader;
 import ast.AST;
 import parser.ParseException;
 import parser.Parser;
+import scanner.ProgramSource;
 import scanner.Scanner;
 
 /**
@@ -84,15 +85,25 @@ public class P1{
   private static AST buildAST(String fileName, boolean printOutput){
     AST ast = null;
     try{
-      Scanner scanner = new Scanner(fileName);
-      Parser parser = new Parser(scanner);
-      ast = parser.buildAST();
+      ast = buildAST(ProgramSource.fromFile(fileName));
     }catch(IOException e){
       throw new ParseException("ERROR: Could not read from file: " + fileName);
     }
     return ast;
   }
 
+  /**
+   * Builds the AST of a program from any source, e.g. one that is already in memory:
+   * <pre>
+   * P1.buildAST(ProgramSource.fromCharSequence("Print 'hello'"))
+   * </pre>
+   */
+  public static AST buildAST(ProgramSource source){
+    Scanner scanner = new Scanner(source);
+    Parser parser = new Parser(scanner);
+    return parser.buildAST();
+  }
+
   private static void printAST(AST ast){
     ast.print();
   }
@@ -6,11 +6,20 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
 
+import java.nio.channels.Channels;
+import java.nio.file.Paths;
+
 import ast.AST;
+import ast.TreeWriter;
 import csem.CSEMachine;
+import csem.Delta;
+import csem.ProgramArtifact;
 import parser.ParseException;
 import parser.Parser;
+import scanner.ProgramSource;
 import scanner.Scanner;
+import scanner.TokenPipeline;
+import scanner.TokenSource;
 
 /**
  * Main driver class.
@@ -19,12 +28,26 @@ import scanner.Scanner;
 public class P2 {
 
   public static String fileName;
+  private static boolean shareFlag;
+  private static boolean parallelFlag;
+  private static boolean pipelineFlag;
+  private static boolean lazyFlag;
+  private static boolean foldFlag;
+  private static boolean inlineFlag;
+  private static boolean deadFlag;
+  private static boolean cseFlag;
+  private static boolean typesFlag;
+  private static boolean shortCircuitFlag;
+  private static final String ARTIFACT_SUFFIX = ".rpalc";
+  private static TreeWriter.Format treeFormat = TreeWriter.Format.TEXT;
 
   public static void main(String[] args){
     boolean listFlag = false;
     boolean astFlag = false;
     boolean stFlag = false;
     boolean noOutFlag = false;
+    boolean compileFlag = false;
+    boolean precompiledFlag = false;
     fileName = "";
     AST ast = null;
     
@@ -41,14 +64,52 @@ public class P2 {
         stFlag = true;
       else if(cmdOption.equals("-noout"))
         noOutFlag = true;
+      else if(cmdOption.equals("-share"))
+        shareFlag = true;
+      else if(cmdOption.equals("-compile"))
+        compileFlag = true;
+      else if(cmdOption.equals("-precompiled"))
+        precompiledFlag = true;
+      else if(cmdOption.equals("-lazy"))
+        lazyFlag = true;
+      else if(cmdOption.equals("-fold"))
+        foldFlag = true;
+      else if(cmdOption.equals("-inline"))
+        inlineFlag = true;
+      else if(cmdOption.equals("-dead"))
+        deadFlag = true;
+      else if(cmdOption.equals("-cse"))
+        cseFlag = true;
+      else if(cmdOption.equals("-types"))
+        typesFlag = true;
+      else if(cmdOption.equals("-shortcircuit"))
+        shortCircuitFlag = true;
+      else if(cmdOption.equals("-parallel"))
+        parallelFlag = true;
+      else if(cmdOption.equals("-pipeline"))
+        pipelineFlag = true;
+      else if(cmdOption.equals("-json"))
+        treeFormat = TreeWriter.Format.JSON;
+      else if(cmdOption.equals("-binary"))
+        treeFormat = TreeWriter.Format.BINARY;
       else
         fileName = cmdOption;
     }
     
+    if(compileFlag){
+      if(fileName.isEmpty())
+        throw new ParseException("Please specify a file. Call P2 with -help to see examples");
+      compile(fileName, hashSource(fileName));
+      return;
+    }
+
     //calling P2 without any switches should evaluate the program and print the result
     if(!listFlag && !astFlag && !stFlag && !noOutFlag){
-      ast = buildAST(fileName, true);
-      ast.standardize();
+      if(precompiledFlag){
+        evaluatePrecompiled(fileName);
+        return;
+      }
+      ast = buildStandardizedAST(fileName);
       evaluateST(ast);
       return;
     }
@@ -73,8 +134,7 @@ public class P2 {
     if(stFlag){
       if(fileName.isEmpty())
         throw new ParseException("Please specify a file. Call P2 with -help to see examples");
-      ast = buildAST(fileName, true);
-      ast.standardize();
+      ast = buildStandardizedAST(fileName);
       printAST(ast);
       if(noOutFlag)
         return;
@@ -89,12 +149,108 @@ public class P2 {
    
   }
 
+  /**
+   * Evaluates a program from any source (e.g. one that is already in memory) and prints the result.
+   * Error messages are reported against {@link #fileName}.
+   */
+  public static void evaluate(ProgramSource source){
+    AST ast = buildStandardizedAST(source);
+    evaluateST(ast);
+  }
+
   private static void evaluateST(AST ast){
+    if(inlineFlag)
+      ast.inlineFunctions();
+    if(foldFlag)
+      ast.foldConstants();
+    if(deadFlag){
+      for(String binding: ast.removeDeadBindings())
+        System.err.println("Removed unused binding "+binding);
+    }
+    if(cseFlag)
+      ast.eliminateCommonSubexpressions();
+    if(typesFlag){
+      String proven = ast.inferTypes();
+      if(proven!=null) //no operators or conditionals: nothing to report
+        System.err.println("Proved operand types: specialized "+proven);
+    }
+    if(shareFlag)
+      System.err.println("Shared common subtrees: removed "+ast.shareCommonSubtrees()+" duplicate nodes");
+    ast.setLazy(lazyFlag);
+    ast.setShortCircuit(shortCircuitFlag);
     CSEMachine csem = new CSEMachine(ast);
     csem.evaluateProgram();
     System.out.println();
   }
 
+  /**
+   * Evaluates a program from its compiled form (FILE.rpalc, see {@link ProgramArtifact}). If there
+   * is no such artifact, or it is stale, the program is compiled (and the artifact written) first.
+   */
+  private static void evaluatePrecompiled(String fileName){
+    byte[] sourceHash = hashSource(fileName);
+    Delta rootDelta = null;
+    try{
+      rootDelta = ProgramArtifact.load(Paths.get(fileName+ARTIFACT_SUFFIX), sourceHash, compileOptions());
+    }catch(IOException e){ //unreadable; just compile it again
+    }
+    if(rootDelta==null)
+      rootDelta = compile(fileName, sourceHash);
+    CSEMachine csem = new CSEMachine(rootDelta);
+    csem.evaluateProgram();
+    System.out.println();
+  }
+
+  /**
+   * Builds the control structures of a program and writes them to FILE.rpalc.
+   * @return the root delta
+   */
+  private static Delta compile(String fileName, byte[] sourceHash){
+    AST ast = buildStandardizedAST(fileName);
+    if(inlineFlag)
+      ast.inlineFunctions();
+    if(foldFlag)
+      ast.foldConstants();
+    if(deadFlag)
+      ast.removeDeadBindings();
+    if(cseFlag)
+      ast.eliminateCommonSubexpressions();
+    if(typesFlag)
+      ast.inferTypes();
+    if(shareFlag)
+      ast.shareCommonSubtrees();
+    ast.setShortCircuit(shortCircuitFlag);
+    Delta rootDelta = ast.createDeltas();
+    try{
+      ProgramArtifact.write(Paths.get(fileName+ARTIFACT_SUFFIX), rootDelta, sourceHash, compileOptions());
+    }catch(IOException e){
+      throw new ParseException("ERROR: Could not write to file: " + fileName+ARTIFACT_SUFFIX);
+    }
+    return rootDelta;
+  }
+
+  /**
+   * @return the switches that change what {@link #compile(String, byte[])} makes of a program, one bit each, so an
+   *         artifact compiled with other ones is not reused
+   */
+  private static int compileOptions(){
+    boolean[] flags = {inlineFlag, foldFlag, deadFlag, cseFlag, typesFlag, shareFlag, shortCircuitFlag};
+    int options = 0;
+    for(int i = 0; i < flags.length; i++){
+      if(flags[i])
+        options |= 1<<i;
+    }
+    return options;
+  }
+
+  private static byte[] hashSource(String fileName){
+    try{
+      return ProgramArtifact.hashSource(Paths.get(fileName));
+    }catch(IOException e){
+      throw new ParseException("ERROR: Could not read from file: " + fileName);
+    }
+  }
+
   private static void printInputListing(String fileName){
     BufferedReader buffer = null;
     try{
@@ -118,17 +274,71 @@ public class P2 {
   private static AST buildAST(String fileName, boolean printOutput){
     AST ast = null;
     try{
-      Scanner scanner = new Scanner(fileName);
-      Parser parser = new Parser(scanner);
-      ast = parser.buildAST();
+      ast = buildAST(ProgramSource.fromFile(fileName));
+    }catch(IOException e){
+      throw new ParseException("ERROR: Could not read from file: " + fileName);
+    }
+    return ast;
+  }
+
+  /**
+   * Builds the AST of a program from any source, e.g. one that is already in memory:
+   * <pre>
+   * P2.buildAST(ProgramSource.fromCharSequence("Print 'hello'"))
+   * </pre>
+   */
+  public static AST buildAST(ProgramSource source){
+    Scanner scanner = new Scanner(source, parallelFlag);
+    Parser parser = new Parser(tokenSource(scanner));
+    AST ast = parser.buildAST();
+    ast.setParallel(parallelFlag);
+    return ast;
+  }
+
+  private static AST buildStandardizedAST(String fileName){
+    AST ast = null;
+    try{
+      ast = buildStandardizedAST(ProgramSource.fromFile(fileName));
     }catch(IOException e){
       throw new ParseException("ERROR: Could not read from file: " + fileName);
     }
     return ast;
   }
 
+  /**
+   * Builds the standardized tree of a program in a single pass: the parser standardizes every
+   * node as it builds it. Use this whenever the unstandardized AST itself is not needed.
+   * In parallel mode (-parallel), the tree is standardized in a separate pass instead, which can
+   * then be split up over several threads.
+   */
+  public static AST buildStandardizedAST(ProgramSource source){
+    if(parallelFlag){
+      AST ast = buildAST(source);
+      ast.standardize();
+      return ast;
+    }
+    Scanner scanner = new Scanner(source);
+    Parser parser = new Parser(tokenSource(scanner), true);
+    return parser.buildAST();
+  }
+
+  /**
+   * @return the scanner, or (in pipeline mode, -pipeline) a {@link TokenPipeline} that runs it on its own thread
+   */
+  private static TokenSource tokenSource(Scanner scanner){
+    return pipelineFlag? TokenPipeline.start(scanner) : scanner;
+  }
+
   private static void printAST(AST ast){
-    ast.print();
+    if(treeFormat==TreeWriter.Format.TEXT){
+      ast.print();
+      return;
+    }
+    try{
+      ast.write(Channels.newChannel(System.out), treeFormat);
+    }catch(IOException e){ //System.out never reports errors
+    }
+    System.out.flush();
   }
 
   private static void printHelp(){
@@ -141,6 +351,32 @@ public class P2 {
     System.out.println("        of evaluating the program");
     System.out.println("        with -noout, prints only the standardized syntax tree generated");
     System.out.println("    -l: prints the source code listing");
+    System.out.println("-compile: writes the compiled program to FILE.rpalc instead of evaluating it");
+    System.out.println("-precompiled: evaluates the program from FILE.rpalc, compiling it first if");
+    System.out.println("        FILE.rpalc is missing or out of date");
+    System.out.println(" -fold: folds constant expressions, propagates let-bound constants and prunes");
+    System.out.println("        conditionals with a constant condition before evaluating the program");
+    System.out.println("-inline: inlines small functions defined with let at their call sites before");
+    System.out.println("        evaluating the program");
+    System.out.println(" -dead: removes bindings that are never used (and whose expressions have no");
+    System.out.println("        effect) before evaluating the program and reports each one removed");
+    System.out.println("  -cse: evaluates repeated pure expressions once per evaluation of the");
+    System.out.println("        function body or conditional arm they are in");
+    System.out.println("-types: infers types and evaluates operators and conditionals whose operands");
+    System.out.println("        are proven to have the right types without checking them; reports how");
+    System.out.println("        many were");
+    System.out.println("-shortcircuit: evaluates the right operand of & and or only if the left one");
+    System.out.println("        does not decide the result, and after the left one");
+    System.out.println(" -lazy: builds the control structure of each lambda only when it is first");
+    System.out.println("        applied");
+    System.out.println("-parallel: lexes, standardizes and builds the control structures of large");
+    System.out.println("        programs on several threads");
+    System.out.println("-pipeline: lexes the program on a thread of its own while parsing it");
+    System.out.println(" -json: with -ast or -st, prints the tree as JSON instead");
+    System.out.println("-binary: with -ast or -st, prints the tree in the binary format of");
+    System.out.println("        ast.TreeWriter instead");
+    System.out.println("-share: shares identical subtrees of the standardized tree before evaluating");
+    System.out.println("        the program and reports how many duplicate nodes were removed");
   }
 
 }
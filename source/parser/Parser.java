@@ -1,12 +1,13 @@
 package parser;
 
-import java.util.Stack;
+import java.util.Arrays;
 
 import ast.AST;
-import ast.ASTNode;
 import ast.ASTNodeType;
-import scanner.Scanner;
+import ast.NodeTable;
+import ast.Standardizer;
 import scanner.Token;
+import scanner.TokenSource;
 import scanner.TokenType;
 
 /**
@@ -19,18 +20,38 @@ import scanner.TokenType;
  * @author Raj
  */
 public class Parser{
-  private Scanner s;
+  private TokenSource s;
   private Token currentToken;
-  Stack<ASTNode> stack;
+  private int lineNumber = 1; //of the last token read
+  private NodeTable nodes;
+  private int[] stack; //ids of the trees built so far
+  private int stackSize;
+  private Standardizer standardizer; //non-null if we standardize nodes as we build them
 
-  public Parser(Scanner s){
+  public Parser(TokenSource s){
     this.s = s;
-    stack = new Stack<ASTNode>();
+    nodes = new NodeTable();
+    stack = new int[64];
+  }
+
+  /**
+   * @param standardize if true, every node is standardized as soon as it is built, so
+   *        {@link #buildAST()} returns the standardized tree directly (exactly what
+   *        {@link AST#standardize()} would have made of the unstandardized one)
+   */
+  public Parser(TokenSource s, boolean standardize){
+    this(s);
+    if(standardize)
+      standardizer = new Standardizer(nodes);
   }
   
   public AST buildAST(){
-    startParse();
-    return new AST(stack.pop());
+    try{
+      startParse();
+    }finally{
+      s.close(); //lets a pipelined scanner stop early if we threw a ParseException
+    }
+    return new AST(nodes, pop(), standardizer!=null);
   }
 
   public void startParse(){
@@ -41,10 +62,9 @@ public class Parser{
   }
 
   private void readNT(){
-    do{
-      currentToken = s.readNextToken(); //load next token
-    }while(isCurrentTokenType(TokenType.DELETE));
+    currentToken = s.readNextToken(); //load next token; the scanner never hands out whitespace or comments
     if(null != currentToken){
+      lineNumber = currentToken.getSourceLineNumber();
       if(currentToken.getType()==TokenType.IDENTIFIER){
         createTerminalASTNode(ASTNodeType.IDENTIFIER, currentToken.getValue());
       }
@@ -99,25 +119,37 @@ public class Parser{
    * @param ariness number of children to create for the new node
    */
   private void buildNAryASTNode(ASTNodeType type, int ariness){
-    ASTNode node = new ASTNode();
-    node.setType(type);
+    int node = nodes.newNode(type);
     while(ariness>0){
-      ASTNode child = stack.pop();
-      if(node.getChild()!=null)
-        child.setSibling(node.getChild());
-      node.setChild(child);
-      node.setSourceLineNumber(child.getSourceLineNumber());
+      int child = pop();
+      if(nodes.getChild(node)!=NodeTable.NONE)
+        nodes.setSibling(child, nodes.getChild(node));
+      nodes.setChild(node, child);
+      nodes.setSourceLineNumber(node, nodes.getSourceLineNumber(child));
       ariness--;
     }
-    stack.push(node);
+    if(standardizer!=null) //all the children have been standardized already
+      standardizer.standardizeNode(node);
+    push(node);
   }
 
   private void createTerminalASTNode(ASTNodeType type, String value){
-    ASTNode node = new ASTNode();
-    node.setType(type);
-    node.setValue(value);
-    node.setSourceLineNumber(currentToken.getSourceLineNumber());
-    stack.push(node);
+    push(nodes.newNode(type, value, currentToken.getSourceLineNumber()));
+  }
+
+  private void push(int node){
+    if(stackSize==stack.length)
+      stack = Arrays.copyOf(stack, stackSize*2);
+    stack[stackSize++] = node;
+  }
+
+  /**
+   * @throws ParseException if no tree is left, i.e., an operand or expression is missing (as in "3 - -2")
+   */
+  private int pop(){
+    if(stackSize==0)
+      throw new ParseException("Line "+lineNumber+": expression expected");
+    return stack[--stackSize];
   }
   
   /******************************
@@ -132,37 +164,50 @@ public class Parser{
    * </pre>
    */
   private void procE(){
-    if(isCurrentToken(TokenType.RESERVED, "let")){ //E -> 'let' D 'in' E => 'let'
-      readNT();
-      procD();
-      if(!isCurrentToken(TokenType.RESERVED, "in"))
-        throw new ParseException("E:  'in' expected");
-      readNT();
-      procE(); //extra readNT in procE()
-      buildNAryASTNode(ASTNodeType.LET, 2);
-    }
-    else if(isCurrentToken(TokenType.RESERVED, "fn")){ //E -> 'fn' Vb+ '.' E => 'lambda'
+    //the lets and fns around the innermost E are only built once it has been, so a long chain of them
+    //(e.g. let x1 = 1 in let x2 = 2 in ...) takes no more Java stack than a single one
+    int[] pendingVbs = new int[8]; //for each enclosing 'let' (0) or 'fn', outermost first, the number of Vbs
+    int numPending = 0;
+    while(true){
       int treesToPop = 0;
-      
-      readNT();
-      while(isCurrentTokenType(TokenType.IDENTIFIER) || isCurrentTokenType(TokenType.L_PAREN)){
-        procVB(); //extra readNT in procVB()
-        treesToPop++;
+      if(isCurrentToken(TokenType.RESERVED, "let")){ //E -> 'let' D 'in' E => 'let'
+        readNT();
+        procD();
+        if(!isCurrentToken(TokenType.RESERVED, "in"))
+          throw new ParseException("E:  'in' expected");
+        readNT();
       }
-      
+      else if(isCurrentToken(TokenType.RESERVED, "fn")){ //E -> 'fn' Vb+ '.' E => 'lambda'
+        readNT();
+        while(isCurrentTokenType(TokenType.IDENTIFIER) || isCurrentTokenType(TokenType.L_PAREN)){
+          procVB(); //extra readNT in procVB()
+          treesToPop++;
+        }
+        
+        if(treesToPop==0)
+          throw new ParseException("E: at least one 'Vb' expected");
+        
+        if(!isCurrentToken(TokenType.OPERATOR, "."))
+          throw new ParseException("E: '.' expected");
+        
+        readNT();
+      }
+      else
+        break;
+      if(numPending==pendingVbs.length)
+        pendingVbs = Arrays.copyOf(pendingVbs, numPending*2);
+      pendingVbs[numPending++] = treesToPop;
+    }
+    
+    procEW(); //E -> Ew
+    
+    while(numPending>0){
+      int treesToPop = pendingVbs[--numPending];
       if(treesToPop==0)
-        throw new ParseException("E: at least one 'Vb' expected");
-      
-      if(!isCurrentToken(TokenType.OPERATOR, "."))
-        throw new ParseException("E: '.' expected");
-      
-      readNT();
-      procE(); //extra readNT in procE()
-      
-      buildNAryASTNode(ASTNodeType.LAMBDA, treesToPop+1); //+1 for the last E 
+        buildNAryASTNode(ASTNodeType.LET, 2);
+      else
+        buildNAryASTNode(ASTNodeType.LAMBDA, treesToPop+1); //+1 for the last E
     }
-    else //E -> Ew
-      procEW();
   }
 
   /**
@@ -571,8 +616,8 @@ public class Parser{
    */
   private void procDB(){
     if(isCurrentTokenType(TokenType.L_PAREN)){ //Db -> '(' D ')'
-      procD();
       readNT();
+      procD(); //extra readNT in procD()
       if(!isCurrentTokenType(TokenType.R_PAREN))
         throw new ParseException("DB: ')' expected");
       readNT();
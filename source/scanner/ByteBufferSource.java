@@ -0,0 +1,72 @@
+package scanner;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Program source backed by encoded bytes (e.g. a memory-mapped file).
+ * 
+ * <p>RPAL's lexicon is pure ASCII, and ASCII bytes are the same in every charset we care about,
+ * so bytes are widened straight into chars for as long as they are ASCII. A proper charset decoder
+ * takes over from the first non-ASCII byte onwards.
+ */
+public class ByteBufferSource implements ProgramSource{
+  private ByteBuffer bytes;
+  private Charset charset;
+  private CharsetDecoder decoder; //null while on the ASCII fast path
+  private boolean flushed;
+  
+  public ByteBufferSource(ByteBuffer bytes, Charset charset){
+    this.bytes = bytes;
+    this.charset = charset;
+  }
+  
+  @Override
+  public int read(char[] buffer, int offset, int length){
+    if(decoder==null){
+      int charsRead = readAscii(buffer, offset, length);
+      if(charsRead!=0) //chars read, or nothing left to read
+        return charsRead;
+    }
+    return decode(buffer, offset, length);
+  }
+  
+  /**
+   * @return number of chars read; 0 if the next byte is not ASCII (the decoder is switched on);
+   *         -1 if there are no more bytes
+   */
+  private int readAscii(char[] buffer, int offset, int length){
+    int start = bytes.position();
+    int bytesToRead = Math.min(length, bytes.limit()-start);
+    if(bytesToRead<=0)
+      return -1;
+    
+    int i = 0;
+    while(i < bytesToRead){
+      byte b = bytes.get(start+i);
+      if(b<0) //not ASCII
+        break;
+      buffer[offset+i] = (char)b;
+      i++;
+    }
+    bytes.position(start+i);
+    
+    if(i<bytesToRead)
+      decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+    return i;
+  }
+  
+  private int decode(char[] buffer, int offset, int length){
+    if(flushed)
+      return -1;
+    CharBuffer out = CharBuffer.wrap(buffer, offset, length);
+    decoder.decode(bytes, out, true);
+    if(!bytes.hasRemaining())
+      flushed = decoder.flush(out).isUnderflow();
+    int charsRead = out.position()-offset;
+    return charsRead==0? -1 : charsRead;
+  }
+}
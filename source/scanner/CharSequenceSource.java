@@ -0,0 +1,30 @@
+package scanner;
+
+/**
+ * Program source backed by characters that are already in memory (e.g. a String
+ * or a StringBuilder).
+ */
+public class CharSequenceSource implements ProgramSource{
+  private CharSequence program;
+  private int position;
+  
+  public CharSequenceSource(CharSequence program){
+    this.program = program;
+  }
+  
+  @Override
+  public int read(char[] buffer, int offset, int length){
+    int charsToCopy = Math.min(length, program.length()-position);
+    if(charsToCopy<=0)
+      return -1;
+    
+    if(program instanceof String)
+      ((String)program).getChars(position, position+charsToCopy, buffer, offset);
+    else{
+      for(int i = 0; i < charsToCopy; i++)
+        buffer[offset+i] = program.charAt(position+i);
+    }
+    position += charsToCopy;
+    return charsToCopy;
+  }
+}
@@ -0,0 +1,59 @@
+package scanner;
+
+/**
+ * Precomputed character-class table that complies with RPAL's lexical grammar.
+ * Used by the scanner to classify each input character with a single array lookup
+ * instead of running it through a set of regular expressions.
+ * 
+ * <p>Only 7-bit ASCII characters belong to a class. Anything else is unknown to
+ * RPAL's lexicon and ends the token stream (exactly as it always has).
+ */
+public final class LexicalCharacterClasses{
+  public static final int LETTER = 1;
+  public static final int DIGIT = 1<<1;
+  public static final int IDENTIFIER = 1<<2; //Letter | Digit | '_'
+  public static final int OPERATOR_SYMBOL = 1<<3;
+  public static final int PUNCTUATION = 1<<4;
+  public static final int SPACE = 1<<5;
+  public static final int STRING = 1<<6; //characters allowed between the quotes of a string literal
+  
+  private static final String letters = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ";
+  private static final String digits = "0123456789";
+  private static final String punctuation = "();,";
+  //NOTE: ',' is an operator symbol too (it always has been; see Parser.procT()). Since operator symbols
+  //are tried before punctuation, ',' is always scanned as an OPERATOR token.
+  private static final String operatorSymbols = "+,-./~:=|!#%_{}\"*<>&$^[]?@\\";
+  private static final String spaces = " \t\n\u000B\f\r";
+  
+  private static final byte[] classes = new byte[128];
+  
+  static{
+    mark(letters, LETTER|IDENTIFIER|STRING);
+    mark(digits, DIGIT|IDENTIFIER|STRING);
+    mark("_", IDENTIFIER);
+    mark(operatorSymbols, OPERATOR_SYMBOL|STRING);
+    mark(punctuation, PUNCTUATION|STRING);
+    mark(spaces, SPACE);
+    mark(" \t\n", STRING);
+  }
+  
+  private LexicalCharacterClasses(){
+  }
+  
+  private static void mark(String chars, int charClass){
+    for(int i = 0; i < chars.length(); i++)
+      classes[chars.charAt(i)] |= charClass;
+  }
+  
+  /**
+   * @param c character to classify
+   * @return bitwise OR of the classes the character belongs to; 0 if it belongs to none
+   */
+  public static int of(int c){
+    return (c>=0 && c<classes.length)? classes[c] : 0;
+  }
+  
+  public static boolean is(int c, int charClass){
+    return (of(c) & charClass)!=0;
+  }
+}
@@ -0,0 +1,170 @@
+package scanner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Lexes a whole program by splitting it into chunks and lexing the chunks on a fork-join pool.
+ *
+ * <p>Chunks always start right after a newline. At such a point the scanner is never inside a
+ * comment (comments end at the newline) and it is inside a token only if a string literal spans
+ * the newline. Each chunk is therefore lexed speculatively, assuming that no token of the previous
+ * chunk runs into it. The assumption is checked afterwards, in order: if the last token of a chunk
+ * did run into the next chunk, the next chunk is lexed again starting where that token ended.
+ *
+ * <p>The tokens (and their line numbers) are exactly those {@link Scanner#readNextToken()} would
+ * hand out one at a time.
+ */
+class ParallelTokenizer{
+  static final int PARALLEL_THRESHOLD = 1<<20; //programs smaller than this (in chars) are lexed sequentially
+  private static final int MIN_CHUNK_SIZE = 1<<16;
+
+  static Token[] tokenize(char[] program, int length, ForkJoinPool pool){
+    if(length<PARALLEL_THRESHOLD){
+      LexedChunk chunk = lexChunk(program, length, 0, length);
+      return chunk.toArray(1);
+    }
+
+    int[] boundaries = chunkBoundaries(program, length, pool.getParallelism());
+    int numChunks = boundaries.length-1;
+
+    List<Callable<LexedChunk>> lexTasks = new ArrayList<Callable<LexedChunk>>();
+    for(int i = 0; i < numChunks; i++){
+      final int from = boundaries[i], to = boundaries[i+1];
+      lexTasks.add(() -> lexChunk(program, length, from, to));
+    }
+    LexedChunk[] chunks = invokeAll(pool, lexTasks).toArray(new LexedChunk[numChunks]);
+
+    //fix up chunks that were lexed from the wrong starting point, and work out where each chunk's tokens go
+    int[] tokenOffsets = new int[numChunks+1];
+    int[] lineNumberBases = new int[numChunks];
+    int linesBeforeChunk = 1;
+    int previousTokenEnd = 0;
+    for(int i = 0; i < numChunks; i++){
+      int newlinesInChunk = chunks[i].newlines;
+      if(previousTokenEnd>boundaries[i]) //a token of the previous chunk ran into this one
+        chunks[i] = lexChunk(program, length, previousTokenEnd, boundaries[i+1]);
+      lineNumberBases[i] = linesBeforeChunk+countNewlines(program, boundaries[i], chunks[i].start);
+      tokenOffsets[i+1] = tokenOffsets[i]+chunks[i].tokens.size();
+      linesBeforeChunk += newlinesInChunk;
+      previousTokenEnd = chunks[i].tokenEnd;
+      if(chunks[i].stopped){ //the sequential scanner would not hand out anything after this
+        numChunks = i+1;
+        break;
+      }
+    }
+
+    Token[] tokens = new Token[tokenOffsets[numChunks]];
+    List<Callable<Void>> mergeTasks = new ArrayList<Callable<Void>>();
+    for(int i = 0; i < numChunks; i++){
+      final LexedChunk chunk = chunks[i];
+      final int offset = tokenOffsets[i], lineNumberBase = lineNumberBases[i];
+      mergeTasks.add(() -> {
+        chunk.copyInto(tokens, offset, lineNumberBase);
+        return null;
+      });
+    }
+    invokeAll(pool, mergeTasks);
+    return tokens;
+  }
+
+  /**
+   * Lexes the tokens that start in program[start..to). The last of them may extend past to.
+   */
+  private static LexedChunk lexChunk(char[] program, int length, int start, int to){
+    LexedChunk chunk = new LexedChunk();
+    chunk.start = start;
+    chunk.tokenEnd = start;
+    chunk.tokens = new ArrayList<Token>();
+
+    Scanner scanner = new Scanner(program, start, length);
+    while(true){
+      int tokenPosition = scanner.nextTokenPosition();
+      if(tokenPosition==-1 || tokenPosition>=to)
+        break;
+      Token token = scanner.buildNextToken();
+      if(token==null){
+        chunk.stopped = true;
+        break;
+      }
+      chunk.tokens.add(token);
+      chunk.tokenEnd = scanner.position();
+    }
+
+    chunk.newlines = countNewlines(program, start, Math.max(start, to));
+    return chunk;
+  }
+
+  /**
+   * Splits the program into roughly equal chunks, each of which starts right after a newline.
+   * @return chunk start positions followed by the length of the program
+   */
+  private static int[] chunkBoundaries(char[] program, int length, int parallelism){
+    int chunkSize = Math.max(MIN_CHUNK_SIZE, length/(parallelism*4));
+    List<Integer> boundaries = new ArrayList<Integer>();
+    boundaries.add(0);
+    int boundary = chunkSize;
+    while(boundary<length){
+      while(boundary<length && program[boundary-1]!='\n')
+        boundary++;
+      if(boundary<length)
+        boundaries.add(boundary);
+      boundary += chunkSize;
+    }
+    boundaries.add(length);
+
+    int[] result = new int[boundaries.size()];
+    for(int i = 0; i < result.length; i++)
+      result[i] = boundaries.get(i);
+    return result;
+  }
+
+  private static int countNewlines(char[] program, int from, int to){
+    int newlines = 0;
+    for(int i = from; i < to; i++)
+      if(program[i]=='\n')
+        newlines++;
+    return newlines;
+  }
+
+  private static <T> List<T> invokeAll(ForkJoinPool pool, List<Callable<T>> tasks){
+    List<T> results = new ArrayList<T>(tasks.size());
+    try{
+      for(Future<T> future: pool.invokeAll(tasks))
+        results.add(future.get());
+    }catch(InterruptedException e){
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while lexing", e);
+    }catch(ExecutionException e){
+      if(e.getCause() instanceof RuntimeException)
+        throw (RuntimeException)e.getCause();
+      throw new IllegalStateException(e.getCause());
+    }
+    return results;
+  }
+
+  private static class LexedChunk{
+    int start; //where lexing started
+    int tokenEnd; //position right after the last token; start if there are no tokens
+    int newlines; //newlines in [start, to)
+    boolean stopped; //hit input that does not form a token
+    List<Token> tokens; //line numbers are relative to start
+
+    Token[] toArray(int lineNumberBase){
+      Token[] result = new Token[tokens.size()];
+      copyInto(result, 0, lineNumberBase);
+      return result;
+    }
+
+    void copyInto(Token[] result, int offset, int lineNumberBase){
+      for(Token token: tokens){
+        token.setSourceLineNumber(token.getSourceLineNumber()+lineNumberBase);
+        result[offset++] = token;
+      }
+    }
+  }
+}
@@ -0,0 +1,46 @@
+package scanner;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Where the scanner gets the characters of an RPAL program from.
+ * 
+ * <p>Use {@link #fromFile(String)} to lex a file through a memory mapping (no copying through
+ * a stream), or {@link #fromCharSequence(CharSequence)} / {@link #fromByteBuffer(ByteBuffer)} to
+ * lex a program that is already in memory.
+ */
+public interface ProgramSource{
+  
+  /**
+   * Copies up to length characters of the program into buffer, starting at offset.
+   * @return number of characters copied; -1 if the program has ended
+   */
+  public int read(char[] buffer, int offset, int length) throws IOException;
+  
+  /**
+   * Memory-maps the given file. The bytes are decoded using the platform's default charset.
+   */
+  public static ProgramSource fromFile(String inputFile) throws IOException{
+    try(FileChannel channel = FileChannel.open(Paths.get(inputFile), StandardOpenOption.READ)){
+      MappedByteBuffer mappedFile = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return new ByteBufferSource(mappedFile, Charset.defaultCharset()); //the mapping outlives the channel
+    }
+  }
+  
+  public static ProgramSource fromCharSequence(CharSequence program){
+    return new CharSequenceSource(program);
+  }
+  
+  /**
+   * The remaining bytes of the buffer are decoded using the platform's default charset.
+   */
+  public static ProgramSource fromByteBuffer(ByteBuffer program){
+    return new ByteBufferSource(program, Charset.defaultCharset());
+  }
+}
@@ -1,265 +1,333 @@
 package scanner;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.Arrays;
-import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Scanner: Combines a lexer and a screener. Complies with RPAL's Lexicon.
+ *
+ * <p>The lexer works directly on a window of characters and classifies them through
+ * {@link LexicalCharacterClasses}. The screener is built in: whitespace and comments are
+ * skipped without ever being turned into tokens, so only tokens the parser cares about are
+ * allocated.
  * @author Raj
  */
-public class Scanner{
-  private BufferedReader buffer;
-  private String extraCharRead;
-  private final List<String> reservedIdentifiers = Arrays.asList(new String[]{"let","in","within","fn","where","aug","or",
-                                                                              "not","gr","ge","ls","le","eq","ne","true",
-                                                                              "false","nil","dummy","rec","and"});
+public class Scanner implements TokenSource{
+  private static final int WINDOW_SIZE = 8192;
+
+  private ProgramSource source;
+  private char[] window;
+  private int position; //index of the next character to be consumed
+  private int limit; //index one past the last valid character in the window
+  private int tokenStart; //index of the first character of the token being built; -1 if none
+  private boolean endOfInput;
   private int sourceLineNumber;
-  
+
+  private boolean parallel;
+  private Token[] prelexedTokens; //all the tokens of the program, in parallel mode
+  private int nextPrelexedToken;
+
   public Scanner(String inputFile) throws IOException{
+    this(ProgramSource.fromFile(inputFile));
+  }
+
+  public Scanner(ProgramSource source){
+    this.source = source;
     sourceLineNumber = 1;
-    buffer = new BufferedReader(new InputStreamReader(new FileInputStream(new File(inputFile))));
+    window = new char[WINDOW_SIZE];
+    tokenStart = -1;
+  }
+
+  /**
+   * @param parallel if true, the whole program is read up front and, if it is large enough, lexed
+   *        in chunks on the common fork-join pool (see {@link ParallelTokenizer}). The tokens handed
+   *        out are exactly the same either way.
+   */
+  public Scanner(ProgramSource source, boolean parallel){
+    this(source);
+    this.parallel = parallel;
+  }
+
+  /**
+   * Scans program[from..length) in place. Line numbers are counted from 0 (i.e., relative to from).
+   * Used to lex one chunk of a program in parallel mode.
+   */
+  Scanner(char[] program, int from, int length){
+    window = program;
+    position = from;
+    limit = length;
+    tokenStart = -1;
+    endOfInput = true; //nothing to fill the window from
   }
-  
+
   /**
-   * Returns next token from input file
-   * @return null if the file has ended
+   * Returns next token from the program source
+   * @return null if the program has ended
    */
   public Token readNextToken(){
-    Token nextToken = null;
-    String nextChar;
-    if(extraCharRead!=null){
-      nextChar = extraCharRead;
-      extraCharRead = null;
-    } else
-      nextChar = readNextChar();
-    if(nextChar!=null)
-      nextToken = buildToken(nextChar);
-    return nextToken;
+    if(parallel)
+      return readNextPrelexedToken();
+    if(nextTokenPosition()==-1)
+      return null;
+    return buildNextToken();
   }
 
-  private String readNextChar(){
-    String nextChar = null;
-    try{
-      int c = buffer.read();
-      if(c!=-1){
-        nextChar = Character.toString((char)c);
-        if(nextChar.equals("\n")) sourceLineNumber++;
-      } else
-          buffer.close();
-    }catch(IOException e){
-    }
-    return nextChar;
+  /**
+   * Skips whitespace and comments.
+   * @return position in the window of the first character of the next token; -1 if the program has ended
+   */
+  int nextTokenPosition(){
+    return skipSpacesAndComments()==-1? -1 : position;
   }
 
   /**
-   * Builds next token from input
-   * @param currentChar character currently being processed 
-   * @return token that was built
+   * @return position in the window of the next character to be consumed
+   */
+  int position(){
+    return position;
+  }
+
+  /**
+   * Builds the token starting at the current position. Must be called right after
+   * {@link #nextTokenPosition()}.
+   * @return null if the characters at the current position do not form a token
    */
-  private Token buildToken(String currentChar){
+  Token buildNextToken(){
+    int c = window[position];
+    int lineNumber = sourceLineNumber;
+    int charClass = LexicalCharacterClasses.of(c);
+    tokenStart = position++;
+
     Token nextToken = null;
-    if(LexicalRegexPatterns.LetterPattern.matcher(currentChar).matches()){
-      nextToken = buildIdentifierToken(currentChar);
-    }
-    else if(LexicalRegexPatterns.DigitPattern.matcher(currentChar).matches()){
-      nextToken = buildIntegerToken(currentChar);
-    }
-    else if(LexicalRegexPatterns.OpSymbolPattern.matcher(currentChar).matches()){ //comment tokens are also entered from here
-      nextToken = buildOperatorToken(currentChar);
-    }
-    else if(currentChar.equals("\'")){
-      nextToken = buildStringToken(currentChar);
-    }
-    else if(LexicalRegexPatterns.SpacePattern.matcher(currentChar).matches()){
-      nextToken = buildSpaceToken(currentChar);
-    }
-    else if(LexicalRegexPatterns.PunctuationPattern.matcher(currentChar).matches()){
-      nextToken = buildPunctuationPattern(currentChar);
-    }
+    if((charClass & LexicalCharacterClasses.LETTER)!=0)
+      nextToken = buildIdentifierToken();
+    else if((charClass & LexicalCharacterClasses.DIGIT)!=0)
+      nextToken = buildRunToken(TokenType.INTEGER, LexicalCharacterClasses.DIGIT);
+    else if((charClass & LexicalCharacterClasses.OPERATOR_SYMBOL)!=0)
+      nextToken = buildRunToken(TokenType.OPERATOR, LexicalCharacterClasses.OPERATOR_SYMBOL);
+    else if(c=='\'')
+      nextToken = buildStringToken();
+    else if((charClass & LexicalCharacterClasses.PUNCTUATION)!=0)
+      nextToken = buildPunctuationToken((char)c);
+
+    tokenStart = -1;
+    if(nextToken!=null)
+      nextToken.setSourceLineNumber(lineNumber);
     return nextToken;
   }
 
   /**
-   * Builds Identifier token.
-   * Identifier -> Letter (Letter | Digit | '_')*
-   * @param currentChar character currently being processed 
-   * @return token that was built
+   * Consumes whitespace and comments.
+   * Comment -> '//' ( '''' | '(' | ')' | ';' | ',' | '\' | ' ' | Ht | Letter | Digit | Operator_symbol )* Eol
+   * @return the first character of the next token (left unconsumed), or -1 if the input has ended
    */
-  private Token buildIdentifierToken(String currentChar){
-    Token identifierToken = new Token();
-    identifierToken.setType(TokenType.IDENTIFIER);
-    identifierToken.setSourceLineNumber(sourceLineNumber);
-    StringBuilder sBuilder = new StringBuilder(currentChar);
-    
-    String nextChar = readNextChar();
-    while(nextChar!=null){ //null indicates the file ended
-      if(LexicalRegexPatterns.IdentifierPattern.matcher(nextChar).matches()){
-        sBuilder.append(nextChar);
-        nextChar = readNextChar();
+  private int skipSpacesAndComments(){
+    while(true){
+      int c = peekChar();
+      if(c==-1)
+        return -1;
+      if(LexicalCharacterClasses.is(c, LexicalCharacterClasses.SPACE)){
+        consumeChar();
+        continue;
       }
-      else{
-        extraCharRead = nextChar;
-        break;
+      if(c!='/')
+        return c;
+
+      //keep the '/' in the window in case this turns out to be an operator and not a comment
+      tokenStart = position++;
+      int next = peekChar();
+      position = tokenStart;
+      tokenStart = -1;
+      if(next!='/')
+        return c;
+
+      position += 2;
+      while((c = peekChar())!=-1){
+        consumeChar();
+        if(c=='\n')
+          break;
       }
     }
-    
-    String value = sBuilder.toString();
-    if(reservedIdentifiers.contains(value))
-      identifierToken.setType(TokenType.RESERVED);
-    
-    identifierToken.setValue(value);
-    return identifierToken;
   }
 
   /**
-   * Builds integer token.
-   * Integer -> Digit+
-   * @param currentChar character currently being processed 
+   * Builds Identifier token.
+   * Identifier -> Letter (Letter | Digit | '_')*
    * @return token that was built
    */
-  private Token buildIntegerToken(String currentChar){
-    Token integerToken = new Token();
-    integerToken.setType(TokenType.INTEGER);
-    integerToken.setSourceLineNumber(sourceLineNumber);
-    StringBuilder sBuilder = new StringBuilder(currentChar);
-    
-    String nextChar = readNextChar();
-    while(nextChar!=null){ //null indicates the file ended
-      if(LexicalRegexPatterns.DigitPattern.matcher(nextChar).matches()){
-        sBuilder.append(nextChar);
-        nextChar = readNextChar();
-      }
-      else{
-        extraCharRead = nextChar;
-        break;
-      }
-    }
-    
-    integerToken.setValue(sBuilder.toString());
-    return integerToken;
+  private Token buildIdentifierToken(){
+    skipWhile(LexicalCharacterClasses.IDENTIFIER);
+    String value = tokenValue(tokenStart, position);
+
+    Token identifierToken = new Token();
+    identifierToken.setType(isReservedIdentifier(value)? TokenType.RESERVED : TokenType.IDENTIFIER);
+    identifierToken.setValue(value);
+    return identifierToken;
   }
 
   /**
-   * Builds operator token.
+   * Builds a token made of a run of characters of the same class.
+   * Integer -> Digit+
    * Operator -> Operator_symbol+
-   * @param currentChar character currently being processed 
+   * @param type type of token to build
+   * @param charClass class every character after the first one must belong to
    * @return token that was built
    */
-  private Token buildOperatorToken(String currentChar){
-    Token opSymbolToken = new Token();
-    opSymbolToken.setType(TokenType.OPERATOR);
-    opSymbolToken.setSourceLineNumber(sourceLineNumber);
-    StringBuilder sBuilder = new StringBuilder(currentChar);
-    
-    String nextChar = readNextChar();
-    
-    if(currentChar.equals("/") && nextChar.equals("/"))
-      return buildCommentToken(currentChar+nextChar);
-    
-    while(nextChar!=null){ //null indicates the file ended
-      if(LexicalRegexPatterns.OpSymbolPattern.matcher(nextChar).matches()){
-        sBuilder.append(nextChar);
-        nextChar = readNextChar();
-      }
-      else{
-        extraCharRead = nextChar;
-        break;
-      }
-    }
-    
-    opSymbolToken.setValue(sBuilder.toString());
-    return opSymbolToken;
+  private Token buildRunToken(TokenType type, int charClass){
+    skipWhile(charClass);
+
+    Token runToken = new Token();
+    runToken.setType(type);
+    runToken.setValue(tokenValue(tokenStart, position));
+    return runToken;
   }
 
   /**
    * Builds string token.
    * String -> '''' ('\' 't' | '\' 'n' | '\' '\' | '\' '''' |'(' | ')' | ';' | ',' |'' |Letter | Digit | Operator_symbol )* ''''
-   * @param currentChar character currently being processed 
-   * @return token that was built
+   * @return token that was built; null if the input ended (or contained a character that is not
+   *         allowed in a string) before the closing quote
    */
-  private Token buildStringToken(String currentChar){
-    Token stringToken = new Token();
-    stringToken.setType(TokenType.STRING);
-    stringToken.setSourceLineNumber(sourceLineNumber);
-    StringBuilder sBuilder = new StringBuilder("");
-    
-    String nextChar = readNextChar();
-    while(nextChar!=null){ //null indicates the file ended
-      if(nextChar.equals("\'")){ //we just used up the last char we read, hence no need to set extraCharRead
-        //sBuilder.append(nextChar);
-        stringToken.setValue(sBuilder.toString());
+  private Token buildStringToken(){
+    int c;
+    while((c = peekChar())!=-1){
+      if(c=='\''){
+        Token stringToken = new Token();
+        stringToken.setType(TokenType.STRING);
+        stringToken.setValue(tokenValue(tokenStart+1, position)); //drop the quotes
+        consumeChar();
         return stringToken;
       }
-      else if(LexicalRegexPatterns.StringPattern.matcher(nextChar).matches()){ //match Letter | Digit | Operator_symbol
-        sBuilder.append(nextChar);
-        nextChar = readNextChar();
-      }
+      if(!LexicalCharacterClasses.is(c, LexicalCharacterClasses.STRING))
+        break;
+      consumeChar();
     }
-    
     return null;
   }
-  
-  private Token buildSpaceToken(String currentChar){
-    Token deleteToken = new Token();
-    deleteToken.setType(TokenType.DELETE);
-    deleteToken.setSourceLineNumber(sourceLineNumber);
-    StringBuilder sBuilder = new StringBuilder(currentChar);
-    
-    String nextChar = readNextChar();
-    while(nextChar!=null){ //null indicates the file ended
-      if(LexicalRegexPatterns.SpacePattern.matcher(nextChar).matches()){
-        sBuilder.append(nextChar);
-        nextChar = readNextChar();
-      }
-      else{
-        extraCharRead = nextChar;
+
+  private Token buildPunctuationToken(char currentChar){
+    Token punctuationToken = new Token();
+    punctuationToken.setValue(String.valueOf(currentChar));
+    switch(currentChar){
+      case '(':
+        punctuationToken.setType(TokenType.L_PAREN);
+        break;
+      case ')':
+        punctuationToken.setType(TokenType.R_PAREN);
+        break;
+      case ';':
+        punctuationToken.setType(TokenType.SEMICOLON);
+        break;
+      case ',':
+        punctuationToken.setType(TokenType.COMMA);
         break;
-      }
     }
-    
-    deleteToken.setValue(sBuilder.toString());
-    return deleteToken;
+    return punctuationToken;
   }
-  
-  private Token buildCommentToken(String currentChar){
-    Token commentToken = new Token();
-    commentToken.setType(TokenType.DELETE);
-    commentToken.setSourceLineNumber(sourceLineNumber);
-    StringBuilder sBuilder = new StringBuilder(currentChar);
-    
-    String nextChar = readNextChar();
-    while(nextChar!=null){ //null indicates the file ended
-      if(LexicalRegexPatterns.CommentPattern.matcher(nextChar).matches()){
-        sBuilder.append(nextChar);
-        nextChar = readNextChar();
-      }
-      else if(nextChar.equals("\n"))
-        break;
+
+  private boolean isReservedIdentifier(String value){
+    switch(value){
+      case "let":
+      case "in":
+      case "within":
+      case "fn":
+      case "where":
+      case "aug":
+      case "or":
+      case "not":
+      case "gr":
+      case "ge":
+      case "ls":
+      case "le":
+      case "eq":
+      case "ne":
+      case "true":
+      case "false":
+      case "nil":
+      case "dummy":
+      case "rec":
+      case "and":
+        return true;
     }
-    
-    commentToken.setValue(sBuilder.toString());
-    return commentToken;
+    return false;
   }
 
-  private Token buildPunctuationPattern(String currentChar){
-    Token punctuationToken = new Token();
-    punctuationToken.setSourceLineNumber(sourceLineNumber);
-    punctuationToken.setValue(currentChar);
-    if(currentChar.equals("("))
-      punctuationToken.setType(TokenType.L_PAREN);
-    else if(currentChar.equals(")"))
-      punctuationToken.setType(TokenType.R_PAREN);
-    else if(currentChar.equals(";"))
-      punctuationToken.setType(TokenType.SEMICOLON);
-    else if(currentChar.equals(","))
-      punctuationToken.setType(TokenType.COMMA);
-    
-    return punctuationToken;
+  private Token readNextPrelexedToken(){
+    if(prelexedTokens==null)
+      prelexedTokens = ParallelTokenizer.tokenize(readWholeProgram(), limit, ForkJoinPool.commonPool());
+    if(nextPrelexedToken==prelexedTokens.length)
+      return null;
+    Token nextToken = prelexedTokens[nextPrelexedToken];
+    prelexedTokens[nextPrelexedToken++] = null; //the parser does not need it any more
+    return nextToken;
+  }
+
+  /**
+   * Reads all of the program into the window.
+   * @return the window; the program occupies window[0..limit)
+   */
+  private char[] readWholeProgram(){
+    tokenStart = 0; //make fillWindow() keep everything read so far
+    while(fillWindow())
+      position = limit;
+    tokenStart = -1;
+    return window;
+  }
+
+  private void skipWhile(int charClass){
+    int c;
+    while((c = peekChar())!=-1 && LexicalCharacterClasses.is(c, charClass))
+      position++;
   }
-}
 
+  private String tokenValue(int start, int end){
+    return new String(window, start, end-start);
+  }
+
+  private void consumeChar(){
+    if(window[position++]=='\n')
+      sourceLineNumber++;
+  }
+
+  /**
+   * @return the next character in the input without consuming it; -1 if the input has ended
+   */
+  private int peekChar(){
+    if(position==limit && !fillWindow())
+      return -1;
+    return window[position];
+  }
+
+  /**
+   * Reads more of the input into the window. The part of the token currently being built (if any)
+   * is moved to the start of the window first; the window grows if that token fills it entirely.
+   * @return false if the input has ended
+   */
+  private boolean fillWindow(){
+    if(endOfInput)
+      return false;
+
+    int keepFrom = tokenStart==-1? limit : tokenStart;
+    int keep = limit-keepFrom;
+    if(keep==window.length)
+      window = Arrays.copyOf(window, window.length*2);
+    System.arraycopy(window, keepFrom, window, 0, keep);
+    if(tokenStart!=-1)
+      tokenStart = 0;
+    position = keep;
+    limit = keep;
+
+    int charsRead = -1;
+    try{
+      charsRead = source.read(window, limit, window.length-limit);
+    }catch(IOException e){
+    }
+    if(charsRead<=0){
+      endOfInput = true;
+      return false;
+    }
+    limit += charsRead;
+    return true;
+  }
+}
@@ -3,7 +3,7 @@ package scanner;
 /**
  * Token given by the scanner to the parser.
  * A token has a type and a value. The value is unimportant
- * for certain kinds of tokens (e.g. DELETE, L_PAREN tokens).
+ * for certain kinds of tokens (e.g. L_PAREN tokens).
  * @author Raj
  *
  */
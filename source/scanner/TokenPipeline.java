@@ -0,0 +1,137 @@
+package scanner;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a scanner on its own thread so that reading and lexing the program overlap with parsing it.
+ *
+ * <p>The scanner thread (the only producer) hands tokens over in fixed-size batches through a
+ * ring buffer that the parser's thread (the only consumer) drains. Once the ring is full the scanner
+ * thread waits for the parser to catch up, so no more than {@code RING_CAPACITY * BATCH_SIZE} tokens
+ * are ever buffered. {@link #close()} (which the parser calls when it is done, error or not) makes
+ * the scanner thread stop.
+ * <pre>
+ * Parser parser = new Parser(TokenPipeline.start(new Scanner(source)));
+ * </pre>
+ */
+public class TokenPipeline implements TokenSource{
+  private static final int BATCH_SIZE = 1024;
+  private static final int RING_CAPACITY = 16; //batches; must be a power of two
+  private static final long MAX_PARK_NANOS = 1000000;
+
+  private final Scanner scanner;
+  private final Token[][] ring;
+  private volatile long head; //number of batches taken by the consumer
+  private volatile long tail; //number of batches published by the producer
+  private volatile boolean closed;
+  private volatile RuntimeException scannerFailure;
+  private volatile Thread producerThread;
+  private volatile Thread consumerThread;
+
+  //consumer-side state
+  private Token[] currentBatch;
+  private int nextTokenInBatch;
+  private boolean ended;
+
+  private TokenPipeline(Scanner scanner){
+    this.scanner = scanner;
+    ring = new Token[RING_CAPACITY][];
+  }
+
+  /**
+   * Starts lexing on a new (daemon) thread.
+   */
+  public static TokenPipeline start(Scanner scanner){
+    TokenPipeline pipeline = new TokenPipeline(scanner);
+    Thread thread = new Thread(pipeline::produce, "rpal-scanner");
+    thread.setDaemon(true);
+    pipeline.producerThread = thread;
+    thread.start();
+    return pipeline;
+  }
+
+  @Override
+  public Token readNextToken(){
+    if(ended)
+      return null;
+    if(currentBatch==null || nextTokenInBatch==BATCH_SIZE){
+      currentBatch = takeBatch();
+      nextTokenInBatch = 0;
+      if(currentBatch==null){ //closed
+        ended = true;
+        return null;
+      }
+    }
+
+    Token nextToken = currentBatch[nextTokenInBatch++];
+    if(nextToken==null){ //a batch that is not full marks the end of the program
+      ended = true;
+      if(scannerFailure!=null)
+        throw scannerFailure;
+    }
+    return nextToken;
+  }
+
+  @Override
+  public void close(){
+    closed = true;
+    LockSupport.unpark(producerThread);
+  }
+
+  private void produce(){
+    Token[] batch = new Token[BATCH_SIZE];
+    int batchSize = 0;
+    try{
+      Token nextToken;
+      while((nextToken = scanner.readNextToken())!=null){
+        batch[batchSize++] = nextToken;
+        if(batchSize==BATCH_SIZE){
+          if(!publishBatch(batch))
+            return;
+          batch = new Token[BATCH_SIZE];
+          batchSize = 0;
+        }
+      }
+    }catch(RuntimeException e){
+      scannerFailure = e; //rethrown on the parser's thread
+    }
+    publishBatch(batch); //never full, hence marks the end
+  }
+
+  /**
+   * Waits for a free slot in the ring and publishes the batch in it.
+   * @return false if the pipeline was closed
+   */
+  private boolean publishBatch(Token[] batch){
+    while(tail-head==RING_CAPACITY){
+      if(closed)
+        return false;
+      LockSupport.parkNanos(this, MAX_PARK_NANOS);
+    }
+    if(closed)
+      return false;
+    ring[(int)tail & (RING_CAPACITY-1)] = batch;
+    tail = tail+1; //volatile write publishes the slot's contents
+    LockSupport.unpark(consumerThread);
+    return true;
+  }
+
+  /**
+   * Waits for a batch to be published and takes it out of the ring.
+   * @return null if the pipeline was closed
+   */
+  private Token[] takeBatch(){
+    consumerThread = Thread.currentThread();
+    while(head==tail){
+      if(closed)
+        return null;
+      LockSupport.parkNanos(this, MAX_PARK_NANOS);
+    }
+    int slot = (int)head & (RING_CAPACITY-1);
+    Token[] batch = ring[slot];
+    ring[slot] = null;
+    head = head+1; //volatile write frees the slot
+    LockSupport.unpark(producerThread);
+    return batch;
+  }
+}
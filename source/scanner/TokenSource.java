@@ -0,0 +1,18 @@
+package scanner;
+
+/**
+ * Anything the parser can pull tokens from.
+ */
+public interface TokenSource{
+  
+  /**
+   * @return next token; null if the program has ended
+   */
+  public Token readNextToken();
+  
+  /**
+   * Called by the parser once it needs no more tokens (including when it gives up with an error).
+   */
+  public default void close(){
+  }
+}
@@ -10,7 +10,6 @@ public enum TokenType{
   INTEGER,
   STRING,
   OPERATOR,
-  DELETE,
   L_PAREN,
   R_PAREN,
   SEMICOLON,